@@ -0,0 +1,68 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheWarmUp;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.RebuildScheduler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * @ClassName CacheController
+ * @Description 缓存运维接口
+ * @Author 12459
+ * @Date 2025/6/3 11:05
+ **/
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private RebuildScheduler rebuildScheduler;
+
+    /**
+     * 查询一级缓存统计
+     * @return 命中率、淘汰数、失效延迟
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(nearCache.stats());
+    }
+
+    /**
+     * 查询启动预热进度
+     * @return 状态、预热数量、耗时
+     */
+    @GetMapping("/warmup")
+    public Result warmup() {
+        return Result.ok(cacheWarmUp.stats());
+    }
+
+    /**
+     * 查询各key前缀的热点key
+     * @return 估计访问次数及是否已提升为本地副本
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.topKeys());
+    }
+
+    /**
+     * 查询缓存重建统计
+     * @return 队列长度，各前缀的耗时、失败、超时、丢弃数
+     */
+    @GetMapping("/rebuild")
+    public Result rebuild() {
+        return Result.ok(rebuildScheduler.stats());
+    }
+}
@@ -4,9 +4,14 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.io.IOException;
 
 /**
  * <p>
@@ -22,6 +27,14 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+    @Resource
+    private SeckillBuyers seckillBuyers;
 
     /**
      * 新增普通券
@@ -31,6 +44,7 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        idBloomFilter.add(IdBloomFilter.VOUCHER, voucher.getId());
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +59,48 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 查询秒杀券在redis中的剩余库存，分片时为各分片之和
+     * @param id 优惠券id
+     * @return 剩余库存
+     */
+    @GetMapping("/stock/{id}")
+    public Result querySeckillStock(@PathVariable("id") Long id) {
+        return Result.ok(stockShards.remaining(id));
+    }
+
+    /**
+     * 查询最近一次秒杀库存对账的结果
+     * @return 各秒杀券的对账结果
+     */
+    @GetMapping("/reconcile")
+    public Result querySeckillReconcile() {
+        return Result.ok(seckillReconciler.reports().values());
+    }
+
+    /**
+     * 查询秒杀券已下单用户的存储方式、人数和占用的redis内存
+     * @param id 优惠券id
+     * @return 存储方式、人数、内存字节数
+     */
+    @GetMapping("/buyers/{id}")
+    public Result querySeckillBuyers(@PathVariable("id") Long id) {
+        return Result.ok(seckillBuyers.memoryUsage(id));
+    }
+
+    /**
+     * 把秒杀券的已下单集合迁移到位图，所有节点切换到bitmap后执行
+     * @param id 优惠券id
+     * @return 迁移的人数
+     */
+    @PostMapping("/buyers/migrate/{id}")
+    public Result migrateSeckillBuyers(@PathVariable("id") Long id) throws IOException {
+        if (!seckillBuyers.isBitmap()) {
+            return Result.fail("当前已下单记录不是bitmap存储");
+        }
+        return Result.ok(seckillBuyers.migrate(id, 1000));
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀订单的最终处理结果，落库后推送给下单用户
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderResult {
+
+    public static final String SUCCESS = "success";
+    public static final String DUPLICATE = "duplicate";
+    public static final String OUT_OF_STOCK = "out_of_stock";
+
+    private Long orderId;
+    private Long userId;
+    private Long voucherId;
+    private String status;
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 违反主键或 (user_id, voucher_id) 唯一索引时忽略，返回插入的行数
+     */
+    int insertIgnore(VoucherOrder order);
+
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -1,9 +1,13 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.OrderResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +20,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void voucherOrder(VoucherOrder voucherId);
+    Result seckillVouchers(List<Long> voucherIds);
+
+    OrderResult voucherOrder(VoucherOrder voucherId);
+
+    List<OrderResult> voucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    Map<Long, List<Long>> cancelUnpaidOrders(List<Long> orderIds);
 }
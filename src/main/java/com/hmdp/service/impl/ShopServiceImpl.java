@@ -10,6 +10,7 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisData;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -40,12 +41,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器拦截不存在的id
+        if (!idBloomFilter.mightContain(IdBloomFilter.SHOP, id)) {
+            return Result.fail("店铺不存在");
+        }
         //缓存穿透
         //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_TTL, TimeUnit.MINUTES, CACHE_SHOP_KEY, id, Shop.class, this::getById);
         //互斥锁解决缓存击穿
+        //Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_TTL, TimeUnit.MINUTES, CACHE_SHOP_KEY, id, Shop.class, this::getById);
+        //逻辑过期解决缓存击穿
         Shop shop = cacheClient
                 .queryWithLogicalExpire(CACHE_SHOP_TTL, TimeUnit.MINUTES, CACHE_SHOP_KEY, id, Shop.class, this::getById);
         if (shop == null) {
@@ -268,8 +277,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //更新数据库
         updateById(shop);
 
-        //删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //删除缓存，同时失效各节点的一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
@@ -1,30 +1,80 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderResultNotifier;
+import com.hmdp.utils.OrderTimeoutQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindow;
+import com.hmdp.utils.SoldOutMarker;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
+import org.redisson.api.AutoClaimResult;
+import org.redisson.api.PendingResult;
+import org.redisson.api.RStream;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.redisson.api.StreamGroup;
+import org.redisson.api.StreamMessageId;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.api.stream.StreamCreateGroupArgs;
+import org.redisson.api.stream.StreamReadGroupArgs;
+import org.redisson.api.stream.StreamTrimArgs;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
 
 /**
  * <p>
@@ -46,102 +96,717 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SoldOutMarker soldOutMarker;
+    @Resource
+    private SeckillWindow seckillWindow;
+    @Resource
+    private OrderResultNotifier orderResultNotifier;
+    @Resource
+    private SeckillStockLease stockLease;
+    @Resource
+    private SeckillBuyers seckillBuyers;
+    @Resource
+    private OrderJournal orderJournal;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    /**
+     * 订单状态：1 未支付，4 已取消
+     */
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("stock_borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
     }
 
-    private BlockingQueue<VoucherOrder> orderTasks = new LinkedBlockingQueue<>(1024*1024);
+    private static final DefaultRedisScript<List> SECKILL_MULTI_SCRIPT;
+    static {
+        SECKILL_MULTI_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_MULTI_SCRIPT.setLocation(new ClassPathResource("seckill_multi.lua"));
+        SECKILL_MULTI_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * 每次从stream读取的订单数
+     */
+    @Value("${hmdp.order.stream.batch-size:10}")
+    private int batchSize;
+    @Value("${hmdp.order.stream.block-millis:2000}")
+    private long blockMillis;
+    /**
+     * 其他消费者超过该时间未确认的消息由本节点认领
+     */
+    @Value("${hmdp.order.stream.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+    /**
+     * 定期删除所有消费者组都已确认的消息，0表示不删除
+     */
+    @Value("${hmdp.order.stream.trim-interval-millis:60000}")
+    private long trimIntervalMillis;
+    /**
+     * 一个事务最多写入的订单数，以及第一条订单最多等待的时间
+     */
+    @Value("${hmdp.order.batch.max-size:200}")
+    private int batchMaxSize;
+    @Value("${hmdp.order.batch.linger-millis:50}")
+    private long batchLingerMillis;
+    /**
+     * 一次最多购买的秒杀券数
+     */
+    @Value("${hmdp.seckill.multi.max-vouchers:20}")
+    private int multiMaxVouchers;
+    @Value("${server.port:8081}")
+    private int serverPort;
+
+    /**
+     * 订单处理通道数，同一个用户的订单固定在一个通道中顺序处理
+     */
+    @Value("${hmdp.order.lanes:4}")
+    private int laneCount;
+    @Value("${hmdp.order.lane-capacity:10000}")
+    private int laneCapacity;
+
     private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService laneExecutor;
+    private OrderLane[] lanes;
+
+    private RStream<String, String> orderStream;
+    /**
+     * 消费者名称，按主机和端口固定，重启后能继续处理自己的pending-list
+     */
+    private String consumerName;
+    private volatile boolean running = true;
+
+    private Timer batchTimer;
+    private DistributionSummary batchSizeSummary;
+    private Counter batchFailedCounter;
+    /**
+     * 按处理结果统计订单：success/duplicate/out_of_stock
+     */
+    private final Map<String, Counter> resultCounters = new HashMap<>();
 
     @PostConstruct
     private void init(){
+        batchTimer = Timer.builder("order.batch.persist").description("订单批量写入耗时").register(meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("order.batch.size").description("订单批量写入条数").register(meterRegistry);
+        batchFailedCounter = Counter.builder("order.batch.failed").description("写入失败留待重试的订单").register(meterRegistry);
+        for (String status : Arrays.asList(OrderResult.SUCCESS, OrderResult.DUPLICATE, OrderResult.OUT_OF_STOCK)) {
+            resultCounters.put(status, Counter.builder("order.persist.result")
+                    .description("订单落库结果")
+                    .tag("status", status)
+                    .register(meterRegistry));
+        }
+        orderStream = redissonClient.getStream(SECKILL_ORDER_STREAM, StringCodec.INSTANCE);
+        consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        //创建消费者组，已存在时忽略
+        try {
+            orderStream.createGroup(StreamCreateGroupArgs.name(SECKILL_ORDER_GROUP).id(StreamMessageId.ALL).makeStream());
+        } catch (RedisException e) {
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+
+        AtomicInteger seq = new AtomicInteger();
+        laneExecutor = Executors.newFixedThreadPool(laneCount, r -> new Thread(r, "order-lane-" + seq.getAndIncrement()));
+        lanes = new OrderLane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            OrderLane lane = new OrderLane(laneCapacity);
+            lanes[i] = lane;
+            Gauge.builder("order.lane.depth", lane.queue, BlockingQueue::size)
+                    .description("通道中等待写库的订单数")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+            Gauge.builder("order.lane.lag", lane, l -> l.lagMillis)
+                    .description("最近一批订单从进入stream到开始写库的毫秒数")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+            laneExecutor.submit(lane);
+        }
         SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
     }
 
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+        laneExecutor.shutdownNow();
+    }
+
+    /*
+     * 按用户id分配通道
+     * */
+    private OrderLane laneOf(Long userId) {
+        return lanes[Math.floorMod(Long.hashCode(userId), lanes.length)];
+    }
+
+    /**
+     * 从stream读取订单，按用户分发到各通道
+     */
     private class VoucherOrderHandler implements Runnable {
 
+        private long lastClaimAt;
+        private long lastTrimAt;
+
         @Override
         public void run() {
-            while (true) {
+            //先处理上次停机前未确认的订单
+            handlePendingList();
+            while (running) {
                 try {
-                    //获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //创建订单
-                    handleVoucherOrder(voucherOrder);
+                    //阻塞读取未投递过的订单，XREADGROUP GROUP g1 c1 COUNT n BLOCK t STREAMS stream.orders >
+                    Map<StreamMessageId, Map<String, String>> messages = orderStream.readGroup(SECKILL_ORDER_GROUP, consumerName,
+                            StreamReadGroupArgs.neverDelivered().count(batchSize).timeout(Duration.ofMillis(blockMillis)));
+                    if (messages != null && !messages.isEmpty()) {
+                        dispatch(messages);
+                    }
+                    claimIdleMessages();
+                    trimStream();
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Exception e) {
-                    log.error(e.getMessage());
+                    if (!running) {
+                        return;
+                    }
+                    //未确认的订单留在pending-list中，超时后重新认领
+                    log.error("读取订单异常", e);
+                    ThreadUtil.sleep(20);
                 }
             }
         }
 
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            Long userId = voucherOrder.getUserId();
-            //创建锁对象
-//        SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-            RLock lock = redissonClient.getLock("lock:order:" + userId);
-
-            //获取锁
-            boolean isLock = lock.tryLock();
-            //判断是否获取锁成功
-            if (!isLock) {
-                //获取锁失败
-                log.error("不允许重复下单");
+        /*
+         * 启动时分发本消费者已读取但未确认的订单
+         * 分发后仍未确认，按id向后读取
+         * */
+        private void handlePendingList() {
+            StreamMessageId lastId = StreamMessageId.ALL;
+            while (running) {
+                try {
+                    Map<StreamMessageId, Map<String, String>> messages = orderStream.readGroup(SECKILL_ORDER_GROUP, consumerName,
+                            StreamReadGroupArgs.greaterThan(lastId).count(batchMaxSize));
+                    if (messages == null || messages.isEmpty()) {
+                        return;
+                    }
+                    dispatch(messages);
+                    for (StreamMessageId id : messages.keySet()) {
+                        lastId = id;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    //留在pending-list中，超时后重新认领
+                    log.error("处理pending-list订单异常", e);
+                    return;
+                }
+            }
+        }
+
+        /*
+         * 脚本写入stream时不带MAXLEN，按长度截断可能删掉还未读取的订单
+         * 定期取各消费者组最后投递的id和pending-list中最小的id，删除比它们都小的消息，XTRIM stream.orders MINID ~ id
+         * */
+        private void trimStream() {
+            long now = System.currentTimeMillis();
+            if (trimIntervalMillis <= 0 || now - lastTrimAt < trimIntervalMillis) {
                 return;
             }
+            lastTrimAt = now;
+            try {
+                StreamMessageId minId = null;
+                for (StreamGroup group : orderStream.listGroups()) {
+                    minId = min(minId, group.getLastDeliveredId());
+                    PendingResult pending = orderStream.getPendingInfo(group.getName());
+                    if (pending.getTotal() > 0) {
+                        minId = min(minId, pending.getLowestId());
+                    }
+                }
+                if (minId == null || minId.getId0() == 0 && minId.getId1() == 0) {
+                    return;
+                }
+                long trimmed = orderStream.trimNonStrict(StreamTrimArgs.minId(minId).noLimit());
+                if (trimmed > 0) {
+                    log.debug("删除已确认的订单消息：{}条", trimmed);
+                }
+            } catch (Exception e) {
+                log.error("清理订单stream失败", e);
+            }
+        }
+
+        private StreamMessageId min(StreamMessageId a, StreamMessageId b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            return a.getId0() < b.getId0() || a.getId0() == b.getId0() && a.getId1() < b.getId1() ? a : b;
+        }
+
+        /*
+         * 认领长时间未确认的订单，包括宕机节点的订单和本节点写库失败的订单
+         * */
+        private void claimIdleMessages() throws InterruptedException {
+            long now = System.currentTimeMillis();
+            if (now - lastClaimAt < claimIdleMillis / 2) {
+                return;
+            }
+            lastClaimAt = now;
+            StreamMessageId start = StreamMessageId.ALL;
+            while (running) {
+                AutoClaimResult<String, String> claimed = orderStream.autoClaim(SECKILL_ORDER_GROUP, consumerName,
+                        claimIdleMillis, TimeUnit.MILLISECONDS, start, batchMaxSize);
+                if (!claimed.getMessages().isEmpty()) {
+                    log.warn("认领未确认的订单：{}条", claimed.getMessages().size());
+                    dispatch(claimed.getMessages());
+                }
+                start = claimed.getNextId();
+                if (claimed.getMessages().isEmpty() || StreamMessageId.ALL.equals(start)) {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * 通道满时阻塞，暂停读取stream
+         * */
+        private void dispatch(Map<StreamMessageId, Map<String, String>> messages) throws InterruptedException {
+            for (Map.Entry<StreamMessageId, Map<String, String>> entry : messages.entrySet()) {
+                List<VoucherOrder> orders = parseOrders(entry.getValue());
+                laneOf(orders.get(0).getUserId()).queue.put(new StreamOrder(entry.getKey(), orders));
+            }
+        }
+    }
+
+    /*
+     * 一条消息一个订单：userId, voucherId, id；脚本中分配序列号时没有id，由 ts, seq 拼接订单id
+     * 一次下单多张券时所有订单在一条消息中：userId, ts, orders = 券id:序列号,券id:序列号...
+     * 没有ts时orders中是完整的订单id，兼容升级前写入的消息
+     * */
+    private static List<VoucherOrder> parseOrders(Map<String, String> fields) {
+        String ts = fields.get("ts");
+        String multi = fields.get("orders");
+        if (multi == null) {
+            VoucherOrder order = BeanUtil.fillBeanWithMap(fields, new VoucherOrder(), true);
+            if (order.getId() == null && ts != null) {
+                order.setId(RedisIdWorker.compose(Long.parseLong(ts), Long.parseLong(fields.get("seq"))));
+            }
+            return Collections.singletonList(order);
+        }
+        Long userId = Long.valueOf(fields.get("userId"));
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (String pair : StrUtil.split(multi, ',')) {
+            int i = pair.indexOf(':');
+            long id = Long.parseLong(pair.substring(i + 1));
+            VoucherOrder order = new VoucherOrder();
+            order.setUserId(userId);
+            order.setVoucherId(Long.valueOf(pair.substring(0, i)));
+            order.setId(ts == null ? id : RedisIdWorker.compose(Long.parseLong(ts), id));
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    /**
+     * 订单处理通道：攒批后写库，同一用户的订单只在一个通道中顺序处理，不需要分布式锁
+     */
+    private class OrderLane implements Runnable {
+
+        private final BlockingQueue<StreamOrder> queue;
+        private volatile long lagMillis;
+
+        private OrderLane(int capacity) {
+            this.queue = new LinkedBlockingQueue<>(capacity);
+        }
 
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    StreamOrder first = queue.poll(blockMillis, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        lagMillis = 0;
+                        continue;
+                    }
+                    //攒批：达到batch-max-size或第一条订单等待超过linger-millis时写库
+                    Map<StreamMessageId, List<VoucherOrder>> batch = new LinkedHashMap<>();
+                    batch.put(first.id, first.orders);
+                    int size = first.orders.size();
+                    long deadline = System.currentTimeMillis() + batchLingerMillis;
+                    while (size < batchMaxSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        StreamOrder next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.put(next.id, next.orders);
+                        size += next.orders.size();
+                    }
+                    //stream消息id的前半部分是写入时的毫秒时间戳
+                    lagMillis = System.currentTimeMillis() - first.id.getId0();
+                    handleBatch(batch);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一条stream消息中的订单，一次下单多张券时有多个订单，一起写库、一起确认
+     */
+    private static class StreamOrder {
+        private final StreamMessageId id;
+        private final List<VoucherOrder> orders;
+
+        private StreamOrder(StreamMessageId id, List<VoucherOrder> orders) {
+            this.id = id;
+            this.orders = orders;
+        }
+    }
+
+    /*
+     * 一个事务写入整批订单，事务提交后再确认，并推送处理结果
+     * 整批失败时拆成两半分别重试，直到单条订单，单条仍失败的留在pending-list中
+     * 返回已确认的订单数
+     * */
+    private int handleBatch(Map<StreamMessageId, List<VoucherOrder>> batch) {
+        int total = batch.values().stream().mapToInt(List::size).sum();
+        long begin = System.nanoTime();
+        int acked = persist(new ArrayList<>(batch.entrySet()));
+        long cost = System.nanoTime() - begin;
+        batchTimer.record(cost, TimeUnit.NANOSECONDS);
+        batchSizeSummary.record(total);
+        if (acked < total) {
+            batchFailedCounter.increment(total - acked);
+        }
+        log.debug("订单批量写入：{}条，成功{}条，耗时{}ms，{}条/秒", total, acked,
+                TimeUnit.NANOSECONDS.toMillis(cost), cost == 0 ? 0 : acked * 1_000_000_000L / cost);
+        return acked;
+    }
+
+    private int persist(List<Map.Entry<StreamMessageId, List<VoucherOrder>>> entries) {
+        List<VoucherOrder> orders = entries.stream().flatMap(e -> e.getValue().stream()).collect(Collectors.toList());
+        List<OrderResult> results;
+        try {
+            if (orders.size() == 1) {
+                results = Collections.singletonList(proxy.voucherOrder(orders.get(0)));
+            } else {
+                results = proxy.voucherOrderBatch(orders);
+            }
+        } catch (Exception e) {
+            if (entries.size() > 1) {
+                log.warn("订单批量写入失败，拆分重试：{}条，原因：{}", orders.size(), e.getMessage());
+                int mid = entries.size() / 2;
+                return persist(entries.subList(0, mid)) + persist(entries.subList(mid, entries.size()));
+            }
+            if (orders.size() == 1) {
+                log.error("订单写入失败，稍后重试：{}", orders.get(0).getId(), e);
+                return 0;
+            }
+            //一条消息中的多个订单，逐条写库区分结果，全部处理完才确认
+            log.warn("多券订单写入失败，逐条重试：{}，原因：{}", entries.get(0).getKey(), e.getMessage());
+            results = persistEach(orders);
+            if (results == null) {
+                return 0;
+            }
+        }
+        //确认前登记支付超时时间，失败时不确认，重新投递的订单视为成功并再次登记
+        try {
+            orderTimeoutQueue.schedule(results.stream()
+                    .filter(r -> OrderResult.SUCCESS.equals(r.getStatus()))
+                    .map(OrderResult::getOrderId)
+                    .collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.error("登记订单超时时间失败，稍后重试：{}条", orders.size(), e);
+            return 0;
+        }
+        //ACK确认 XACK stream.orders g1 id...
+        orderStream.ack(SECKILL_ORDER_GROUP, entries.stream().map(Map.Entry::getKey).toArray(StreamMessageId[]::new));
+        results.forEach(r -> resultCounters.get(r.getStatus()).increment());
+        orderResultNotifier.publish(results);
+        return orders.size();
+    }
+
+    /*
+     * 单条写库是幂等的，中途失败时整条消息留在pending-list中，重试时已写入的订单视为成功
+     * */
+    private List<OrderResult> persistEach(List<VoucherOrder> orders) {
+        List<OrderResult> results = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
             try {
-                proxy.voucherOrder(voucherOrder);
-            } finally {
-                lock.unlock();
+                results.add(proxy.voucherOrder(order));
+            } catch (Exception e) {
+                log.error("订单写入失败，稍后重试：{}", order.getId(), e);
+                return null;
             }
         }
+        return results;
     }
 
+    /**
+     * 消费线程可能先于任何请求启动，延迟注入代理对象
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //布隆过滤器拦截不存在的优惠券
+        if (!idBloomFilter.mightContain(IdBloomFilter.VOUCHER, voucherId)) {
+            return Result.fail("优惠券不存在");
+        }
+        //按本地缓存的时间窗口提前拦截
+        int window = seckillWindow.check(voucherId);
+        if (window != SeckillWindow.OPEN) {
+            return Result.fail(windowMessage(window));
+        }
+        //本节点已知售罄，不再访问redis
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(
+        //各路径通过校验后才生成订单id，成功返回订单id，失败返回脚本结果的相反数
+        int shards = stockShards.shardCount(voucherId);
+        if (shards <= 1 && stockLease.isEnabled()) {
+            //租约模式，在本地租用的库存中扣减，本地库存不足时不广播售罄
+            long r = admitLeased(voucherId, userId);
+            return r > 0 ? Result.ok(r) : Result.fail(admitMessage((int) -r));
+        }
+        long r;
+        if (shards > 1) {
+            //库存已分片
+            r = seckillSharded(voucherId, userId, shards);
+        } else {
+            //执行lua脚本，有购买资格时由脚本分配序列号并把订单写入stream
+            r = seckillSingle(voucherId, userId);
+            if (r == -SeckillStockShards.NOT_LOADED) {
+                //库存key不存在，可能是本地缓存的分片数已过期，重新读取后按分片下单
+                stockShards.invalidate(voucherId);
+                shards = stockShards.shardCount(voucherId);
+                if (shards > 1) {
+                    r = seckillSharded(voucherId, userId, shards);
+                }
+            }
+        }
+
+        if (r > 0) {
+            //有购买资格，订单已进入stream，返回订单id
+            return Result.ok(r);
+        }
+        if (r == -1) {
+            //库存不足，标记售罄并通知其他节点；库存未加载不是售罄，不标记
+            soldOutMarker.markSoldOut(voucherId);
+        }
+        return Result.fail(admitMessage((int) -r));
+    }
+
+    /*
+     * 未分片的券：时间戳和序列号key在调用前确定，脚本只为通过校验的请求INCR序列号，一次往返
+     * */
+    private long seckillSingle(Long voucherId, Long userId) {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = redisIdWorker.timestamp(now);
+        List<?> result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString()
+                voucherId.toString(), userId.toString(), redisIdWorker.counterKey("order", now),
+                seckillBuyers.store(), seckillBuyers.ttlArg(), String.valueOf(timestamp)
         );
+        int r = ((Number) result.get(0)).intValue();
+        return r == 0 ? RedisIdWorker.compose(timestamp, ((Number) result.get(1)).longValue()) : -r;
+    }
+
+    /*
+     * 一次下单多张秒杀券：一个lua脚本检查所有券的时间窗口、库存和一人一单，全部满足才扣减，
+     * 所有订单作为一条消息写入stream，由同一个通道一起写库
+     * 分片库存的key不在同一个slot，租约模式的库存在节点本地，这两种券不能一起下单
+     * 成功返回 券id -> 订单id
+     * */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.fail("请选择优惠券");
+        }
+        if (ids.size() > multiMaxVouchers) {
+            return Result.fail("一次最多购买" + multiMaxVouchers + "张优惠券");
+        }
+        //逐张按本地信息提前拦截
+        for (Long voucherId : ids) {
+            if (!idBloomFilter.mightContain(IdBloomFilter.VOUCHER, voucherId)) {
+                return Result.fail("优惠券不存在：" + voucherId);
+            }
+            int window = seckillWindow.check(voucherId);
+            if (window != SeckillWindow.OPEN) {
+                return Result.fail(windowMessage(window) + "：" + voucherId);
+            }
+            if (soldOutMarker.isSoldOut(voucherId)) {
+                return Result.fail("库存不足：" + voucherId);
+            }
+            if (stockLease.isEnabled() || stockShards.shardCount(voucherId) > 1) {
+                return Result.fail("该优惠券不支持合并下单：" + voucherId);
+            }
+        }
+
+        Long userId = UserHolder.getUser().getId();
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = redisIdWorker.timestamp(now);
+        List<String> args = new ArrayList<>(Arrays.asList(userId.toString(), seckillBuyers.store(), seckillBuyers.ttlArg(),
+                redisIdWorker.counterKey("order", now), String.valueOf(timestamp)));
+        ids.forEach(voucherId -> args.add(voucherId.toString()));
+        //返回 {0, 最后一个序列号} 或 {错误码, 券id}，序列号按券的顺序连续分配
+        List<?> result = stringRedisTemplate.execute(SECKILL_MULTI_SCRIPT, Collections.emptyList(), args.toArray());
+        int r = ((Number) result.get(0)).intValue();
+        if (r == 0) {
+            long first = ((Number) result.get(1)).longValue() - ids.size() + 1;
+            Map<Long, Long> orderIds = new LinkedHashMap<>();
+            for (int i = 0; i < ids.size(); i++) {
+                orderIds.put(ids.get(i), RedisIdWorker.compose(timestamp, first + i));
+            }
+            return Result.ok(orderIds);
+        }
+        Long failed = ((Number) result.get(1)).longValue();
+        if (r == 1) {
+            soldOutMarker.markSoldOut(failed);
+        }
+        if (r == SeckillStockShards.NOT_LOADED) {
+            stockShards.invalidate(failed);
+        }
+        return Result.fail(admitMessage(r) + "：" + failed);
+    }
+
+    private long admitLeased(Long voucherId, Long userId) {
+        try {
+            return stockLease.admit(voucherId, userId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("秒杀下单被中断", e);
+        }
+    }
 
-        //判断结果是否为0
-        int r = result.intValue();
-        if (r != 0){
-            //不为0
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+    private static String windowMessage(int window) {
+        return window == SeckillWindow.NOT_STARTED ? "秒杀尚未开始" : "秒杀已经结束";
+    }
+
+    /*
+     * 下单脚本的失败结果：1 库存不足，2 重复下单，4 尚未开始，5 已经结束，7 库存未加载
+     * */
+    private static String admitMessage(int r) {
+        if (r == SeckillWindow.NOT_STARTED || r == SeckillWindow.ENDED) {
+            return windowMessage(r);
+        }
+        if (r == SeckillStockShards.NOT_LOADED) {
+            return "库存尚未加载，请稍后再试";
         }
+        return r == 1 ? "库存不足" : "不能重复下单";
+    }
 
-        //为0， 有购买资格，把下单信息保存到阻塞队列
-        long orderId = redisIdWorker.nextId("order");
+    /*
+     * 分片库存下单：在用户所在分片判断一人一单并扣减，该分片售罄时依次向后面的分片借用
+     * 每次脚本只访问同一个slot的key，可以在redis集群中执行，取得库存后才生成订单id，订单随后写入stream
+     * 成功返回订单id，失败返回脚本结果的相反数
+     * */
+    private long seckillSharded(Long voucherId, Long userId, int shards) {
+        int home = stockShards.homeShard(userId, shards);
+        List<String> keys = new ArrayList<>(Arrays.asList(stockShards.stockKey(voucherId, home),
+                stockShards.orderKey(voucherId, home), seckillWindow.windowKey(voucherId, home, shards)));
+        if (seckillBuyers.isBitmap()) {
+            keys.add(seckillBuyers.bitmapKey(voucherId, home, shards, userId));
+        }
+        Long r = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, keys,
+                userId.toString(), String.valueOf(seckillBuyers.offset(userId)), seckillBuyers.ttlArg());
+        if (r == 2 || r == SeckillWindow.NOT_STARTED || r == SeckillWindow.ENDED) {
+            return -r;
+        }
 
-        //保存阻塞队列
-        //创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //订单id
-        long orderid = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderid);
-        //用户id
-        Long userid = userId;
-        voucherOrder.setUserId(userid);
-        //代金券id
-        voucherOrder.setVoucherId(voucherId);
-        //放入阻塞队列
-        orderTasks.add(voucherOrder);
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        int taken = r == 0 ? home : -1;
+        for (int i = 1; i < shards && taken < 0; i++) {
+            int shard = (home + i) % shards;
+            Long borrowed = stringRedisTemplate.execute(STOCK_BORROW_SCRIPT,
+                    Collections.singletonList(stockShards.stockKey(voucherId, shard)));
+            if (borrowed != null && borrowed == 0) {
+                taken = shard;
+            }
+        }
+        if (taken < 0) {
+            //所有分片都已售罄，释放占住的资格
+            seckillBuyers.remove(voucherId, home, shards, userId);
+            return -1;
+        }
 
-        return Result.ok(orderId);
+        //发送订单到stream，失败时归还库存和资格
+        long orderId;
+        try {
+            orderId = redisIdWorker.nextId("order");
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForValue().increment(stockShards.stockKey(voucherId, taken));
+            seckillBuyers.remove(voucherId, home, shards, userId);
+            throw e;
+        }
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", userId.toString());
+        fields.put("voucherId", voucherId.toString());
+        fields.put("id", String.valueOf(orderId));
+        try {
+            sendOrder(fields);
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForValue().increment(stockShards.stockKey(voucherId, taken));
+            seckillBuyers.remove(voucherId, home, shards, userId);
+            soldOutMarker.clear(voucherId);
+            throw e;
+        }
+        return orderId;
+    }
 
+    /*
+     * 本地日志primary模式：订单刷盘到本地日志即返回，由日志批量转发到stream
+     * fallback模式：写stream失败时写入本地日志，redis恢复后再转发
+     * */
+    private void sendOrder(Map<String, String> fields) {
+        if (!orderJournal.isPrimary()) {
+            try {
+                orderStream.add(StreamAddArgs.entries(fields));
+                return;
+            } catch (RuntimeException e) {
+                if (!orderJournal.isEnabled()) {
+                    throw e;
+                }
+                log.warn("订单写入stream失败，写入本地日志：{}，原因：{}", fields.get("id"), e.getMessage());
+            }
+        }
+        try {
+            orderJournal.append(fields);
+        } catch (IOException e) {
+            throw new IllegalStateException("订单写入本地日志失败：" + fields.get("id"), e);
+        }
     }
 
     /*@Override
@@ -184,19 +849,22 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
+    /*
+     * 一人一单由 (user_id, voucher_id) 唯一索引保证：先 INSERT IGNORE，没有插入即为重复，
+     * 插入成功后再扣减库存，库存不足时回滚本次插入
+     * */
     @Transactional
-    public void voucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId = voucherOrder.getUserId();
+    public OrderResult voucherOrder(VoucherOrder voucherOrder) {
         Long voucherId = voucherOrder.getVoucherId();
 
-        //查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-
-        //判断是否存在
-        if (count > 0) {
-            //用户已经购买过
-            log.error("用户已经购买过一次！");
+        //创建订单，已存在时忽略
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            //重复投递的同一订单视为成功，其他订单为重复下单，都直接确认
+            if (getById(voucherOrder.getId()) != null) {
+                return result(voucherOrder, OrderResult.SUCCESS);
+            }
+            log.error("用户已经购买过一次！userId：{}，voucherId：{}", voucherOrder.getUserId(), voucherId);
+            return result(voucherOrder, OrderResult.DUPLICATE);
         }
 
         //扣减库存
@@ -205,11 +873,93 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .eq("voucher_id", voucherId).gt("stock", 0)
                 .update();
         if (!success) {
-            //扣减失败
-            log.error("库存不足");
+            //扣减失败，回滚订单
+            log.error("库存不足，voucherId：{}", voucherId);
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return result(voucherOrder, OrderResult.OUT_OF_STOCK);
         }
+        return result(voucherOrder, OrderResult.SUCCESS);
+    }
 
-        //创建订单
-        save(voucherOrder);
+    private static OrderResult result(VoucherOrder order, String status) {
+        return new OrderResult(order.getId(), order.getUserId(), order.getVoucherId(), status);
+    }
+
+    /*
+     * 批量创建订单：一条多行 INSERT IGNORE，每个优惠券一条扣减库存语句
+     * 全部插入时不需要额外查询；有行被忽略说明批内有重复订单，整批回滚，由调用方拆分到单条后逐条区分
+     * 库存不足同样整批回滚；返回每条订单的处理结果
+     * */
+    @Transactional
+    public List<OrderResult> voucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        //同一批内按用户和优惠券去重，同一订单重复投递视为成功
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        Map<Long, String> statuses = new LinkedHashMap<>();
+        for (VoucherOrder order : voucherOrders) {
+            VoucherOrder first = unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+            if (first != null && !first.getId().equals(order.getId())) {
+                statuses.put(order.getId(), OrderResult.DUPLICATE);
+            }
+        }
+
+        //多行insert创建订单
+        int inserted = getBaseMapper().insertIgnoreBatch(new ArrayList<>(unique.values()));
+        if (inserted != unique.size()) {
+            throw new DuplicateKeyException("批量写入时存在已有订单：" + (unique.size() - inserted) + "条");
+        }
+
+        //按优惠券合并扣减库存
+        Map<Long, Long> counts = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, k) -> {
+            boolean success = seckillVoucherService
+                    .update().setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (!success) {
+                //库存不足，整批回滚
+                throw new IllegalStateException("库存不足，voucherId：" + voucherId + "，扣减：" + k);
+            }
+        });
+
+        List<OrderResult> results = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder order : voucherOrders) {
+            results.add(result(order, statuses.getOrDefault(order.getId(), OrderResult.SUCCESS)));
+        }
+        return results;
+    }
+
+    /*
+     * 取消仍未支付的订单，按券合并归还数据库库存，返回 券id -> 被取消订单的用户id
+     * 先用 SELECT ... FOR UPDATE 锁住仍未支付的订单，锁定读总是读最新提交的数据，与隔离级别无关：
+     * 其他节点同时取消或用户同时支付的订单要么已被排除，要么等本事务提交后才能修改
+     * 锁住的订单全部由本事务取消，返回的用户与归还的库存数量一致，redis库存和已下单记录不会重复归还
+     * 返回用户id，redis库存可以放回订单扣减的分片
+     * */
+    @Transactional
+    public Map<Long, List<Long>> cancelUnpaidOrders(List<Long> orderIds) {
+        List<VoucherOrder> unpaid = query().select("id", "user_id", "voucher_id")
+                .in("id", orderIds).eq("status", STATUS_UNPAID)
+                .last("FOR UPDATE")
+                .list();
+        Map<Long, List<VoucherOrder>> byVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        Map<Long, List<Long>> cancelled = new LinkedHashMap<>();
+        byVoucher.forEach((voucherId, orders) -> {
+            List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            int count = getBaseMapper().update(null, Wrappers.<VoucherOrder>update()
+                    .set("status", STATUS_CANCELLED)
+                    .in("id", ids).eq("status", STATUS_UNPAID));
+            if (count != ids.size()) {
+                //行已加锁，不应出现；整批回滚，留在队列中稍后重试
+                throw new IllegalStateException("取消订单数量不一致，voucherId：" + voucherId
+                        + "，锁定：" + ids.size() + "，取消：" + count);
+            }
+            seckillVoucherService.update().setSql("stock = stock + " + count)
+                    .eq("voucher_id", voucherId)
+                    .update();
+            cancelled.put(voucherId, orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList()));
+        });
+        return cancelled;
     }
 }
@@ -7,7 +7,9 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindow;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -31,6 +33,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillWindow seckillWindow;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,7 +60,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock() + "");
+        //保存秒杀库存到redis中，按配置拆分为多个分片
+        int shards = voucher.getStockShards() == null ? stockShards.defaultShards() : voucher.getStockShards();
+        stockShards.init(voucher.getId(), voucher.getStock(), shards);
+        //保存秒杀时间窗口，由lua脚本校验
+        seckillWindow.save(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+        //加入布隆过滤器
+        idBloomFilter.add(IdBloomFilter.VOUCHER, voucher.getId());
     }
 }
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @ClassName BinaryCacheCodec
+ * @Description 紧凑的二进制格式
+ * 格式：版本(1字节) | 标志(1字节) | 逻辑过期时间epoch毫秒(8字节) | 重建耗时(8字节) | smile数据
+ * 数据超过阈值时使用deflate压缩
+ * @Author 12459
+ * @Date 2025/6/12 11:15
+ **/
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    /**
+     * 格式版本，取值不能与json首字节'{'冲突
+     */
+    static final byte FORMAT_V1 = (byte) 0xB1;
+    private static final byte FLAG_DEFLATE = 0x01;
+    private static final int HEADER_SIZE = 18;
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold = 1024;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == FORMAT_V1;
+    }
+
+    @Override
+    public byte[] encode(CacheValue value) {
+        byte[] payload;
+        try {
+            payload = mapper.writeValueAsBytes(value.getData());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte flags = 0;
+        if (payload.length > compressThreshold) {
+            payload = deflate(payload);
+            flags |= FLAG_DEFLATE;
+        }
+
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+                .put(FORMAT_V1)
+                .put(flags)
+                .putLong(value.getExpireAt())
+                .putLong(value.getRebuildCost())
+                .put(payload)
+                .array();
+    }
+
+    @Override
+    public <R> CacheValue decode(byte[] bytes, Class<R> clazz) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.get();
+        byte flags = buffer.get();
+        long expireAt = buffer.getLong();
+        long rebuildCost = buffer.getLong();
+
+        try {
+            R r;
+            if ((flags & FLAG_DEFLATE) != 0) {
+                byte[] payload = inflate(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+                r = mapper.readValue(payload, clazz);
+            } else {
+                r = mapper.readValue(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, clazz);
+            }
+            return new CacheValue(r, expireAt, rebuildCost);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+            byte[] buf = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("压缩数据不完整");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("压缩数据格式错误", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
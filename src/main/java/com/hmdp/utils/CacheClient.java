@@ -1,19 +1,27 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -27,112 +35,597 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 public class CacheClient {
 
+    private static final int MUTEX_MAX_RETRIES = 20;
+    private static final long MUTEX_RETRY_MILLIS = 50;
+    private static final byte[] NULL_BYTES = new byte[0];
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final NearCache nearCache;
+    private final HotKeyDetector hotKeyDetector;
+    private final RebuildScheduler rebuildScheduler;
+    private final CacheMetrics metrics;
+    private final List<CacheCodec> codecs;
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Value("${hmdp.cache.early-refresh.enabled:false}")
+    private boolean earlyRefresh;
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    /**
+     * 写入使用的编码
+     */
+    private CacheCodec writeCodec;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, NearCache nearCache,
+                       HotKeyDetector hotKeyDetector, RebuildScheduler rebuildScheduler,
+                       CacheMetrics metrics, List<CacheCodec> codecs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.nearCache = nearCache;
+        this.hotKeyDetector = hotKeyDetector;
+        this.rebuildScheduler = rebuildScheduler;
+        this.metrics = metrics;
+        this.codecs = codecs;
+    }
+
+    @PostConstruct
+    private void init() {
+        writeCodec = codecs.stream()
+                .filter(codec -> codec.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码：" + codecName));
     }
 
     public void set(String key, Object value, long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        long begin = System.nanoTime();
+        rawSet(key, writeCodec.encode(new CacheValue(value, 0, 0)), timeUnit.toSeconds(time));
+        //所有节点的本地副本失效，由下一次读取重新加载
+        nearCache.invalidate(key);
+        metrics.put(CacheMetrics.prefixOf(key), "set", begin);
+    }
+
+    /*
+     * 删除缓存，并通知所有节点失效一级缓存
+     * */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
     }
 
     //设置逻辑过期
     public void setWithLogicalExpire(String key, Object value, long time, TimeUnit timeUnit) {
+        setWithLogicalExpire(key, value, time, timeUnit, 0);
+    }
+
+    /*
+     * 设置逻辑过期，同时记录重建耗时(毫秒)，供提前刷新使用
+     * */
+    public void setWithLogicalExpire(String key, Object value, long time, TimeUnit timeUnit, long rebuildCost) {
+        long begin = System.nanoTime();
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        rawSet(key, writeCodec.encode(new CacheValue(value, expireAt, rebuildCost)), 0);
+        nearCache.invalidate(key);
+        metrics.put(CacheMetrics.prefixOf(key), "set_logical_expire", begin);
+    }
+
+    /*
+     * 批量设置逻辑过期，通过pipeline一次写入
+     * */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, long time, TimeUnit timeUnit) {
+        setBatchWithLogicalExpire(values, time, timeUnit, 0);
+    }
+
+    public void setBatchWithLogicalExpire(Map<String, ?> values, long time, TimeUnit timeUnit, long rebuildCost) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long begin = System.nanoTime();
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                connection.set(rawKey(entry.getKey()),
+                        writeCodec.encode(new CacheValue(entry.getValue(), expireAt, rebuildCost)));
+            }
+            return null;
+        });
+        for (String key : values.keySet()) {
+            nearCache.invalidate(key);
+        }
+        metrics.put(CacheMetrics.prefixOf(values.keySet().iterator().next()), "set_batch_logical_expire", begin);
     }
 
     //设置缓存穿透
     public <R, ID> R queryWithPassThrough(long time, TimeUnit timeUnit,
             String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        long begin = System.nanoTime();
+        String key = keyPrefix + id;
+        boolean hot = hotKeyDetector.record(keyPrefix, key);
+        try {
+            //查询一级缓存和redis
+            Object cached = lookup(key, clazz, hot);
+            if (cached != null) {
+                metrics.get(keyPrefix, cached == NearCache.NULL_VALUE ? CacheMetrics.NULL : CacheMetrics.HIT);
+                return unwrap(cached, clazz);
+            }
+
+            //不存在，同一个key只由一个线程查询数据库
+            metrics.get(keyPrefix, CacheMetrics.MISS);
+            return singleFlight.execute(key, () -> {
+                //二次检查，可能刚被其他线程写入
+                Object recheck = lookup(key, clazz, hot);
+                if (recheck != null) {
+                    return unwrap(recheck, clazz);
+                }
+                return loadAndCache(keyPrefix, key, id, dbFallback, time, timeUnit);
+            });
+        } finally {
+            metrics.query(keyPrefix, "pass_through", begin);
+        }
+    }
+
+    /*
+     * 利用互斥锁解决缓存击穿
+     * 本节点的并发未命中先合并为一次加载，再由该线程竞争redis互斥锁
+     * */
+    public <R, ID> R queryWithMutex(long time, TimeUnit timeUnit,
+            String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        long begin = System.nanoTime();
         String key = keyPrefix + id;
+        boolean hot = hotKeyDetector.record(keyPrefix, key);
+        try {
+            return queryWithMutex(keyPrefix, key, id, hot, clazz, dbFallback, time, timeUnit);
+        } finally {
+            metrics.query(keyPrefix, "mutex", begin);
+        }
+    }
+
+    private <R, ID> R queryWithMutex(String keyPrefix, String key, ID id, boolean hot, Class<R> clazz,
+            Function<ID, R> dbFallback, long time, TimeUnit timeUnit) {
+        Object cached = lookup(key, clazz, hot);
+        if (cached != null) {
+            metrics.get(keyPrefix, cached == NearCache.NULL_VALUE ? CacheMetrics.NULL : CacheMetrics.HIT);
+            return unwrap(cached, clazz);
+        }
+
+        metrics.get(keyPrefix, CacheMetrics.MISS);
+        return singleFlight.execute(key, () -> {
+            String lockKey = LOCK_SHOP_KEY + id;
+            for (int i = 0; i < MUTEX_MAX_RETRIES; i++) {
+                if (tryLock(lockKey)) {
+                    try {
+                        //二次检查，其他节点可能已经重建
+                        Object recheck = lookup(key, clazz, hot);
+                        if (recheck != null) {
+                            return unwrap(recheck, clazz);
+                        }
+                        return loadAndCache(keyPrefix, key, id, dbFallback, time, timeUnit);
+                    } finally {
+                        unlock(lockKey);
+                    }
+                }
+
+                //其他节点正在重建，等待后检查redis
+                ThreadUtil.sleep(MUTEX_RETRY_MILLIS);
+                Object rebuilt = lookup(key, clazz, hot);
+                if (rebuilt != null) {
+                    return unwrap(rebuilt, clazz);
+                }
+            }
+
+            //等待超时，直接查询数据库
+            log.warn("等待缓存重建超时，直接查询数据库: {}", key);
+            long loadBegin = System.nanoTime();
+            R r = dbFallback.apply(id);
+            metrics.dbLoad(keyPrefix, loadBegin);
+            return r;
+        });
+    }
+
+    /*
+     * 依次查询一级缓存和redis
+     * 未命中返回null，命中空值返回NULL_VALUE
+     * */
+    private <R> Object lookup(String key, Class<R> clazz, boolean hot) {
+        Object local = nearCache.get(key);
+        if (local != null) {
+            return local;
+        }
+
         //从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = rawGet(key);
 
         //判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //存在，返回
-            return JSONUtil.toBean(json, clazz);
+        if (bytes == null) {
+            return null;
         }
 
         //判断是否命中为空值
-        if (json != null) {
-            return null;
+        if (bytes.length == 0) {
+            nearCache.put(key, NearCache.NULL_VALUE);
+            if (hot) {
+                nearCache.putHot(key, NearCache.NULL_VALUE);
+            }
+            return NearCache.NULL_VALUE;
+        }
+
+        Object r = decode(bytes, clazz).getData();
+        nearCache.put(key, r);
+        if (hot) {
+            nearCache.putHot(key, r);
         }
+        return r;
+    }
+
+    private static <R> R unwrap(Object cached, Class<R> clazz) {
+        return cached == NearCache.NULL_VALUE ? null : clazz.cast(cached);
+    }
 
-        //不存在，根据id查询数据库
+    /*
+     * 查询数据库并写入缓存
+     * */
+    private <R, ID> R loadAndCache(String keyPrefix, String key, ID id, Function<ID, R> dbFallback,
+            long time, TimeUnit timeUnit) {
+        //根据id查询数据库
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
+        metrics.dbLoad(keyPrefix, begin);
 
         //数据库不存在，返回错误
         if (r == null) {
             //将空值写入redis，解决缓存穿透
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            rawSet(key, NULL_BYTES, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+            nearCache.put(key, NearCache.NULL_VALUE);
             //返回错误信息
             return null;
         }
 
         //数据库存在，写入redis
         this.set(key, r, time, timeUnit);
-
+        nearCache.put(key, r);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /*
      * 利用逻辑过期解决缓存击穿
      * */
     public <R, ID> R queryWithLogicalExpire( long time, TimeUnit timeUnit,
             String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
-        //从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
+        long begin = System.nanoTime();
+        String key = keyPrefix + id;
+        boolean hot = hotKeyDetector.record(keyPrefix, key);
+        try {
+            return queryWithLogicalExpire(keyPrefix, key, id, hot, clazz, dbFallback, time, timeUnit);
+        } finally {
+            metrics.query(keyPrefix, "logical_expire", begin);
+        }
+    }
 
-        //判断是否存在
-        if (StrUtil.isBlank(json)) {
-            //存在，返回
-            return null;
+    private <R, ID> R queryWithLogicalExpire(String keyPrefix, String key, ID id, boolean hot, Class<R> clazz,
+            Function<ID, R> dbFallback, long time, TimeUnit timeUnit) {
+        long now = System.currentTimeMillis();
+        //先查询一级缓存，本地副本已逻辑过期时再查询redis
+        CacheValue cacheValue = null;
+        Object local = nearCache.get(key);
+        if (local instanceof CacheValue && !((CacheValue) local).isExpired(now)) {
+            cacheValue = (CacheValue) local;
+        }
+
+        if (cacheValue == null) {
+            //从redis查询商铺缓存
+            byte[] bytes = rawGet(key);
+
+            //判断是否存在
+            if (bytes == null || bytes.length == 0) {
+                //存在，返回
+                metrics.get(keyPrefix, CacheMetrics.MISS);
+                return null;
+            }
+
+            //命中，反序列化为对象，一级缓存保存已解析的数据
+            cacheValue = decode(bytes, clazz);
+            nearCache.put(key, cacheValue);
+            //热点key提升为本地副本
+            if (hot) {
+                nearCache.putHot(key, cacheValue);
+            }
         }
 
-        //命中，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean(JSONUtil.toJsonStr(redisData.getData()), clazz);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        R r = clazz.cast(cacheValue.getData());
 
-        //判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        //判断是否过期，未过期时按概率提前刷新
+        boolean expired = cacheValue.isExpired(now);
+        metrics.get(keyPrefix, expired ? CacheMetrics.STALE : CacheMetrics.HIT);
+        if (!expired && !shouldRefreshEarly(cacheValue, now)) {
             return r;
         }
 
-        //获取互斥锁
+        //已在排队重建时不再获取互斥锁
         String lockKey = LOCK_SHOP_KEY + id;
+        if (rebuildScheduler.isPending(key)) {
+            return r;
+        }
         boolean lock = tryLock(lockKey);
 
         //判断是否获取锁成功
         if (lock){
-            //成功,开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //重建缓存
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(keyPrefix + id, JSONUtil.toJsonStr(r1), time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
+            //成功,交给重建调度执行，完成、超时或被丢弃时释放锁
+            boolean submitted = rebuildScheduler.submit(keyPrefix, key, hot, () -> {
+                //重建缓存，并记录重建耗时
+                long begin = System.nanoTime();
+                R r1 = dbFallback.apply(id);
+                metrics.dbLoad(keyPrefix, begin);
+                long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+                this.setWithLogicalExpire(key, r1, time, timeUnit, cost);
+            }, () -> unlock(lockKey));
+            if (!submitted) {
+                unlock(lockKey);
+            }
+        }
+
+        //失败，返回过期的商铺信息
+        return r;
+    }
+
+    /*
+     * 批量查询并解决缓存穿透
+     * 一次MGET查询redis，未命中的id一次交给数据库查询，结果通过pipeline批量写回
+     * 返回结果只包含存在的id
+     * */
+    public <R, ID> Map<ID, R> queryBatch(long time, TimeUnit timeUnit, String keyPrefix, Collection<ID> ids,
+            Class<R> clazz, Function<Collection<ID>, Map<ID, R>> dbFallback) {
+        long begin = System.nanoTime();
+        try {
+            return queryBatch(keyPrefix, ids, clazz, dbFallback, time, timeUnit);
+        } finally {
+            metrics.query(keyPrefix, "batch", begin);
+        }
+    }
+
+    private <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new LinkedHashMap<>(ids.size());
+        //先查询一级缓存
+        List<ID> remoteIds = new ArrayList<>();
+        Set<ID> hotIds = new HashSet<>();
+        for (ID id : ids) {
+            if (hotKeyDetector.record(keyPrefix, keyPrefix + id)) {
+                hotIds.add(id);
+            }
+            Object local = nearCache.get(keyPrefix + id);
+            if (local == null) {
+                remoteIds.add(id);
+            } else if (local != NearCache.NULL_VALUE) {
+                metrics.get(keyPrefix, CacheMetrics.HIT);
+                result.put(id, clazz.cast(local));
+            } else {
+                metrics.get(keyPrefix, CacheMetrics.NULL);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+
+        //MGET查询redis
+        List<byte[]> values = rawMultiGet(keyPrefix, remoteIds);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes == null) {
+                metrics.get(keyPrefix, CacheMetrics.MISS);
+                missIds.add(id);
+            } else if (bytes.length == 0) {
+                //命中空值
+                metrics.get(keyPrefix, CacheMetrics.NULL);
+                nearCache.put(keyPrefix + id, NearCache.NULL_VALUE);
+                if (hotIds.contains(id)) {
+                    nearCache.putHot(keyPrefix + id, NearCache.NULL_VALUE);
+                }
+            } else {
+                metrics.get(keyPrefix, CacheMetrics.HIT);
+                R r = clazz.cast(decode(bytes, clazz).getData());
+                nearCache.put(keyPrefix + id, r);
+                if (hotIds.contains(id)) {
+                    nearCache.putHot(keyPrefix + id, r);
+                }
+                result.put(id, r);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+
+        //未命中的id一次查询数据库
+        long loadBegin = System.nanoTime();
+        Map<ID, R> loaded = dbFallback.apply(missIds);
+        metrics.dbLoad(keyPrefix, loadBegin);
+        long seconds = timeUnit.toSeconds(time);
+        long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                //数据库不存在的id写入空值
+                if (r == null) {
+                    connection.setEx(rawKey(keyPrefix + id), nullSeconds, NULL_BYTES);
+                } else {
+                    connection.setEx(rawKey(keyPrefix + id), seconds, writeCodec.encode(new CacheValue(r, 0, 0)));
                 }
+            }
+            return null;
+        });
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            nearCache.put(keyPrefix + id, r);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * 批量查询并利用逻辑过期解决缓存击穿
+     * 一次MGET查询redis，已过期的id获取锁后合并为一次数据库查询异步重建
+     * 与单个查询一样，redis中不存在的id不返回
+     * */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(long time, TimeUnit timeUnit, String keyPrefix,
+            Collection<ID> ids, Class<R> clazz, Function<Collection<ID>, Map<ID, R>> dbFallback) {
+        long begin = System.nanoTime();
+        try {
+            return queryBatchWithLogicalExpire(keyPrefix, ids, clazz, dbFallback, time, timeUnit);
+        } finally {
+            metrics.query(keyPrefix, "batch_logical_expire", begin);
+        }
+    }
+
+    private <R, ID> Map<ID, R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, long time, TimeUnit timeUnit) {
+        Map<ID, R> result = new LinkedHashMap<>(ids.size());
+        long now = System.currentTimeMillis();
+        List<ID> remoteIds = new ArrayList<>();
+        Set<ID> hotIds = new HashSet<>();
+        for (ID id : ids) {
+            if (hotKeyDetector.record(keyPrefix, keyPrefix + id)) {
+                hotIds.add(id);
+            }
+            Object local = nearCache.get(keyPrefix + id);
+            if (local instanceof CacheValue && !((CacheValue) local).isExpired(now)
+                    && !shouldRefreshEarly((CacheValue) local, now)) {
+                metrics.get(keyPrefix, CacheMetrics.HIT);
+                result.put(id, clazz.cast(((CacheValue) local).getData()));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+
+        List<byte[]> values = rawMultiGet(keyPrefix, remoteIds);
+        List<ID> lockedIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes == null || bytes.length == 0) {
+                metrics.get(keyPrefix, CacheMetrics.MISS);
+                continue;
+            }
+            CacheValue cacheValue = decode(bytes, clazz);
+            metrics.get(keyPrefix, cacheValue.isExpired(now) ? CacheMetrics.STALE : CacheMetrics.HIT);
+            nearCache.put(keyPrefix + id, cacheValue);
+            if (hotIds.contains(id)) {
+                nearCache.putHot(keyPrefix + id, cacheValue);
+            }
+            result.put(id, clazz.cast(cacheValue.getData()));
 
+            //过期或需要提前刷新时获取互斥锁，已在排队重建的id跳过
+            if ((cacheValue.isExpired(now) || shouldRefreshEarly(cacheValue, now))
+                    && !rebuildScheduler.isPending(keyPrefix + id) && tryLock(LOCK_SHOP_KEY + id)) {
+                lockedIds.add(id);
+            }
+        }
+        if (lockedIds.isEmpty()) {
+            return result;
+        }
+
+        //交给重建调度合并执行，按每个id去重，包含热点key时优先
+        boolean hot = lockedIds.stream().anyMatch(hotIds::contains);
+        List<String> keys = lockedIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        Runnable release = () -> {
+            for (ID id : lockedIds) {
+                unlock(LOCK_SHOP_KEY + id);
+            }
+        };
+        boolean submitted = rebuildScheduler.submit(keyPrefix, keys, hot, () -> {
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = dbFallback.apply(lockedIds);
+            metrics.dbLoad(keyPrefix, begin);
+            long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+            Map<String, R> rebuilt = new LinkedHashMap<>(loaded.size());
+            loaded.forEach((id, r) -> {
+                if (r != null) {
+                    rebuilt.put(keyPrefix + id, r);
+                }
             });
+            setBatchWithLogicalExpire(rebuilt, time, timeUnit, cost);
+            //数据库中已删除的id写入空值，与缓存穿透的空值有效期相同，避免过期数据一直被返回、反复重建
+            long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+            for (ID id : lockedIds) {
+                if (loaded.get(id) == null) {
+                    rawSet(keyPrefix + id, NULL_BYTES, nullSeconds);
+                    nearCache.invalidate(keyPrefix + id);
+                }
+            }
+        }, release);
+        if (!submitted) {
+            release.run();
+        }
+
+        //返回过期的数据
+        return result;
+    }
 
+    /*
+     * 按首字节选择能解码的格式，兼容滚动发布期间的旧数据
+     * */
+    private <R> CacheValue decode(byte[] bytes, Class<R> clazz) {
+        if (writeCodec.canDecode(bytes)) {
+            return writeCodec.decode(bytes, clazz);
         }
+        for (CacheCodec codec : codecs) {
+            if (codec.canDecode(bytes)) {
+                return codec.decode(bytes, clazz);
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存格式，首字节：" + bytes[0]);
+    }
 
-        //失败，返回过期的商铺信息
-        return r;
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] rawGet(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    /*
+     * seconds为0时不设置过期时间
+     * */
+    private void rawSet(String key, byte[] value, long seconds) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (seconds > 0) {
+                return connection.setEx(rawKey(key), seconds, value);
+            }
+            return connection.set(rawKey(key), value);
+        });
+    }
+
+    private <ID> List<byte[]> rawMultiGet(String keyPrefix, List<ID> ids) {
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = rawKey(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        return values == null ? Collections.nCopies(keys.length, null) : values;
+    }
+
+    /*
+     * XFetch提前刷新：剩余时间越短、重建越慢，提前重建的概率越高
+     * 满足 now - cost * beta * ln(rand) >= expireAt 时触发
+     * */
+    private boolean shouldRefreshEarly(CacheValue cacheValue, long now) {
+        long cost = cacheValue.getRebuildCost();
+        if (!earlyRefresh || cost <= 0) {
+            return false;
+        }
+        long remaining = cacheValue.getExpireAt() - now;
+        //rand取(0,1]，避免ln(0)
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return -cost * earlyRefreshBeta * Math.log(rand) >= remaining;
     }
 
     /*
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+/**
+ * @ClassName CacheCodec
+ * @Description 缓存值编解码，写入时使用配置的编码，读取时按首字节选择能解码的实现
+ * @Author 12459
+ * @Date 2025/6/12 10:31
+ **/
+public interface CacheCodec {
+
+    /*
+     * 编码名称，对应配置 hmdp.cache.codec
+     * */
+    String name();
+
+    /*
+     * 是否能解码该数据，一般根据首字节的格式版本判断
+     * */
+    boolean canDecode(byte[] bytes);
+
+    /*
+     * 编码，expireAt为0时写入普通缓存
+     * */
+    byte[] encode(CacheValue value);
+
+    /*
+     * 解码，data转换为clazz类型
+     * */
+    <R> CacheValue decode(byte[] bytes, Class<R> clazz);
+}
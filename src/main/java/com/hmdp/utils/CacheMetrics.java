@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @ClassName CacheMetrics
+ * @Description CacheClient的指标，按key前缀打标签，通过actuator以prometheus格式暴露
+ * cache.gets        查询结果计数，result: hit/null/stale/miss
+ * cache.query       查询耗时，method: pass_through/mutex/logical_expire/batch...
+ * cache.puts        写入耗时，method: set/set_logical_expire/set_batch_logical_expire
+ * cache.db.load     回源数据库耗时
+ * @Author 12459
+ * @Date 2025/6/23 10:37
+ **/
+@Component
+public class CacheMetrics {
+
+    public static final String HIT = "hit";
+    public static final String NULL = "null";
+    public static final String STALE = "stale";
+    public static final String MISS = "miss";
+
+    private final MeterRegistry registry;
+
+    /**
+     * 按名称和标签缓存meter，避免每次查询都去注册表查找
+     */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void get(String keyPrefix, String result) {
+        counters.computeIfAbsent(keyPrefix + '|' + result, k -> Counter.builder("cache.gets")
+                .description("缓存查询结果")
+                .tag("prefix", keyPrefix)
+                .tag("result", result)
+                .register(registry))
+                .increment();
+    }
+
+    public void query(String keyPrefix, String method, long beginNanos) {
+        timer("cache.query", keyPrefix, method).record(System.nanoTime() - beginNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void put(String keyPrefix, String method, long beginNanos) {
+        timer("cache.puts", keyPrefix, method).record(System.nanoTime() - beginNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void dbLoad(String keyPrefix, long beginNanos) {
+        timer("cache.db.load", keyPrefix, null).record(System.nanoTime() - beginNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String keyPrefix, String method) {
+        return timers.computeIfAbsent(name + '|' + keyPrefix + '|' + method, k -> {
+            Timer.Builder builder = Timer.builder(name).tag("prefix", keyPrefix);
+            if (method != null) {
+                builder.tag("method", method);
+            }
+            return builder.register(registry);
+        });
+    }
+
+    /*
+     * 由完整key推出前缀，如 cache:shop:1 -> cache:shop:
+     * */
+    public static String prefixOf(String key) {
+        return key.substring(0, key.lastIndexOf(':') + 1);
+    }
+}
@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * @ClassName CacheValue
+ * @Description 解码后的缓存值，逻辑过期时间使用epoch毫秒
+ * @Author 12459
+ * @Date 2025/6/12 10:26
+ **/
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheValue {
+
+    private Object data;
+
+    /**
+     * 逻辑过期时间(epoch毫秒)，0表示没有逻辑过期
+     */
+    private long expireAt;
+
+    /**
+     * 上次重建耗时(毫秒)，用于提前刷新
+     */
+    private long rebuildCost;
+
+    public boolean isExpired(long nowMillis) {
+        return expireAt <= nowMillis;
+    }
+}
@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * @ClassName CacheWarmUp
+ * @Description 启动时预热热点店铺缓存，并校验秒杀库存
+ * 预热期间发布REFUSING_TRAFFIC，完成后发布ACCEPTING_TRAFFIC，就绪探针在预热完成前不会把流量切过来
+ * @Author 12459
+ * @Date 2025/6/15 9:48
+ **/
+@Component
+@Slf4j
+public class CacheWarmUp implements ApplicationRunner {
+
+    public enum State { PENDING, RUNNING, DONE, FAILED, DISABLED }
+
+    private final IShopService shopService;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final CacheClient cacheClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards stockShards;
+    private final SoldOutMarker soldOutMarker;
+    private final SeckillWindow seckillWindow;
+    private final SeckillBuyers seckillBuyers;
+    private final SeckillStockLease stockLease;
+    private final IVoucherOrderService voucherOrderService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+    /**
+     * 按销量或评论数预热前N个店铺
+     */
+    @Value("${hmdp.warmup.shop-top-n:200}")
+    private int shopTopN;
+    @Value("${hmdp.warmup.shop-order-by:sold}")
+    private String shopOrderBy;
+    /**
+     * 指定店铺id，逗号分隔，配置后不再按排行预热
+     */
+    @Value("${hmdp.warmup.shop-ids:}")
+    private String shopIds;
+    @Value("${hmdp.warmup.batch-size:50}")
+    private int batchSize;
+
+    private volatile State state = State.PENDING;
+    private volatile long shopsWarmed;
+    private volatile long vouchersChecked;
+    private volatile long stocksRestored;
+    private volatile long costMillis;
+
+    public CacheWarmUp(IShopService shopService, ISeckillVoucherService seckillVoucherService,
+                       CacheClient cacheClient, StringRedisTemplate stringRedisTemplate,
+                       SeckillStockShards stockShards, SoldOutMarker soldOutMarker,
+                       SeckillWindow seckillWindow, SeckillBuyers seckillBuyers,
+                       SeckillStockLease stockLease, IVoucherOrderService voucherOrderService,
+                       ApplicationEventPublisher eventPublisher) {
+        this.shopService = shopService;
+        this.seckillVoucherService = seckillVoucherService;
+        this.cacheClient = cacheClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stockShards = stockShards;
+        this.soldOutMarker = soldOutMarker;
+        this.seckillWindow = seckillWindow;
+        this.seckillBuyers = seckillBuyers;
+        this.stockLease = stockLease;
+        this.voucherOrderService = voucherOrderService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            state = State.DISABLED;
+            return;
+        }
+        state = State.RUNNING;
+        long begin = System.currentTimeMillis();
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        try {
+            warmUpShops();
+            checkSeckillStock();
+            state = State.DONE;
+        } catch (Exception e) {
+            //预热失败不阻止启动，由正常的缓存逻辑兜底
+            state = State.FAILED;
+            log.error("缓存预热失败", e);
+        } finally {
+            AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+            costMillis = System.currentTimeMillis() - begin;
+            log.info("缓存预热结束，状态：{}，店铺：{}，秒杀券：{}，恢复库存：{}，耗时：{}ms",
+                    state, shopsWarmed, vouchersChecked, stocksRestored, costMillis);
+        }
+    }
+
+    private void warmUpShops() {
+        if (StrUtil.isNotBlank(shopIds)) {
+            List<Long> ids = StrUtil.split(shopIds, ',', true, true).stream()
+                    .map(Long::valueOf)
+                    .collect(Collectors.toList());
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                List<Long> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+                writeShops(shopService.listByIds(batch));
+                log.debug("店铺预热进度：{}/{}", shopsWarmed, ids.size());
+            }
+            return;
+        }
+
+        //只允许按销量或评论数排序
+        String orderBy = "comments".equals(shopOrderBy) ? "comments" : "sold";
+        long pages = (shopTopN + batchSize - 1) / batchSize;
+        for (long current = 1; current <= pages; current++) {
+            List<Shop> shops = shopService.query()
+                    .orderByDesc(orderBy)
+                    .orderByAsc("id")
+                    .page(new Page<>(current, batchSize, false))
+                    .getRecords();
+            writeShops(shops.subList(0, (int) Math.min(shops.size(), shopTopN - shopsWarmed)));
+            log.debug("店铺预热进度：{}/{}", shopsWarmed, shopTopN);
+            if (shops.size() < batchSize) {
+                break;
+            }
+        }
+    }
+
+    private void writeShops(List<Shop> shops) {
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size());
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setBatchWithLogicalExpire(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        shopsWarmed += shops.size();
+    }
+
+    /*
+     * 未结束的秒杀券，redis中缺少库存时按订单补上，已存在的不覆盖
+     * 库存已分片的券不按单个key恢复，时间窗口以数据库为准重新写入
+     * */
+    private void checkSeckillStock() {
+        LocalDateTime now = LocalDateTime.now();
+        for (long current = 1; ; current++) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", now)
+                    .orderByAsc("voucher_id")
+                    .page(new Page<>(current, batchSize, false))
+                    .getRecords();
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            for (SeckillVoucher voucher : vouchers) {
+                seckillWindow.save(voucher.getVoucherId(), voucher.getBeginTime(), voucher.getEndTime());
+            }
+            List<SeckillVoucher> unsharded = vouchers.stream()
+                    .filter(voucher -> stockShards.shardCount(voucher.getVoucherId()) <= 1)
+                    .collect(Collectors.toList());
+
+            //先找出缺少库存的券，只为这些券统计订单
+            List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (SeckillVoucher voucher : unsharded) {
+                    connection.exists((SECKILL_STOCK_KEY + voucher.getVoucherId()).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            List<Long> restored = new ArrayList<>();
+            for (int i = 0; i < exists.size(); i++) {
+                if (Boolean.TRUE.equals(exists.get(i))) {
+                    continue;
+                }
+                Long voucherId = unsharded.get(i).getVoucherId();
+                Boolean set = stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId,
+                        String.valueOf(remainingStock(unsharded.get(i))));
+                if (Boolean.TRUE.equals(set)) {
+                    restored.add(voucherId);
+                    soldOutMarker.clear(voucherId);
+                }
+            }
+            if (!restored.isEmpty()) {
+                log.warn("redis中缺少秒杀库存，已按数据库恢复：{}", restored);
+            }
+            vouchersChecked += vouchers.size();
+            stocksRestored += restored.size();
+            if (vouchers.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * 数据库库存在订单落库后才扣减，落后于redis，不能直接作为redis库存
+     * 和对账一样按 数据库库存 + 数据库订单数 = 初始库存 计算，减去已下单用户(包括stream中还未落库的订单)
+     * 和各节点租用未售出的库存
+     * redis数据整体丢失时已下单记录和stream也不在了，已下单用户按不少于数据库订单数计算，不会把已售出的库存补回去
+     * */
+    private long remainingStock(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        long dbOrders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        long buyers = seckillBuyers.count(voucherId);
+        if (buyers < dbOrders) {
+            log.error("秒杀券{}的已下单记录少于数据库订单数，redis数据可能已丢失，按数据库库存恢复：已下单{}，订单{}",
+                    voucherId, buyers, dbOrders);
+        }
+        return remainingStock(voucher.getStock(), dbOrders, buyers, stockLease.outstanding(voucherId));
+    }
+
+    static long remainingStock(long dbStock, long dbOrders, long buyers, long outstanding) {
+        return Math.max(0, dbStock + dbOrders - Math.max(buyers, dbOrders) - outstanding);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state);
+        stats.put("shopsWarmed", shopsWarmed);
+        stats.put("vouchersChecked", vouchersChecked);
+        stats.put("stocksRestored", stocksRestored);
+        stats.put("costMillis", costMillis);
+        return stats;
+    }
+}
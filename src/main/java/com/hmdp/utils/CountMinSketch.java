@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @ClassName CountMinSketch
+ * @Description 计数最小草图，用固定内存估算key的访问次数，只会高估不会低估
+ * @Author 12459
+ * @Date 2025/6/18 15:20
+ **/
+public class CountMinSketch {
+
+    private static final int[] SEEDS = {0x9747b28c, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f, 0x165667b1, 0x61c88647};
+
+    private final int depth;
+    private final int width;
+    private final AtomicIntegerArray table;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = Math.min(depth, SEEDS.length);
+        this.width = width;
+        this.table = new AtomicIntegerArray(this.depth * width);
+    }
+
+    /*
+     * 增加计数，返回增加后的估计值
+     * */
+    public int add(String key, int delta) {
+        int h = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, table.addAndGet(index(i, h), delta));
+        }
+        return min;
+    }
+
+    public int estimate(String key) {
+        int h = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, table.get(index(i, h)));
+        }
+        return min;
+    }
+
+    /*
+     * 所有计数减半，使历史访问逐渐失效
+     * */
+    public void decay() {
+        for (int i = 0; i < table.length(); i++) {
+            int old;
+            do {
+                old = table.get(i);
+            } while (old != 0 && !table.compareAndSet(i, old, old >>> 1));
+        }
+    }
+
+    private int index(int row, int hash) {
+        int h = (hash ^ SEEDS[row]) * 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return row * width + ((h & Integer.MAX_VALUE) % width);
+    }
+}
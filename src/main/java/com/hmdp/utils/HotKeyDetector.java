@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * @ClassName HotKeyDetector
+ * @Description 热点key探测：按key前缀采样计数，计数周期性衰减，超过阈值的key判定为热点
+ * @Author 12459
+ * @Date 2025/6/18 15:42
+ **/
+@Component
+@Slf4j
+public class HotKeyDetector {
+
+    @Value("${hmdp.cache.hot-key.enabled:false}")
+    private boolean enabled;
+    /**
+     * 采样比例，采中时按 1/sample-rate 计数
+     */
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+    /**
+     * 一个衰减周期内的访问次数超过该值判定为热点
+     */
+    @Value("${hmdp.cache.hot-key.threshold:500}")
+    private int threshold;
+    @Value("${hmdp.cache.hot-key.top-k:20}")
+    private int topK;
+
+    private final Map<String, PrefixCounter> counters = new ConcurrentHashMap<>();
+
+    /*
+     * 记录一次访问，返回该key当前是否为热点
+     * */
+    public boolean record(String keyPrefix, String key) {
+        if (!enabled) {
+            return false;
+        }
+        PrefixCounter counter = counters.computeIfAbsent(keyPrefix, p -> new PrefixCounter(topK * 4));
+        if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            int estimate = counter.sketch.add(key, (int) Math.max(1, Math.round(1 / sampleRate)));
+            counter.track(key, estimate, threshold);
+        }
+        return counter.hotKeys.contains(key);
+    }
+
+    /*
+     * 周期性衰减计数，重新计算热点
+     * */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.decay-interval-millis:10000}")
+    public void decay() {
+        for (PrefixCounter counter : counters.values()) {
+            counter.sketch.decay();
+            counter.candidates.replaceAll((key, count) -> counter.sketch.estimate(key));
+            counter.candidates.values().removeIf(count -> count == 0);
+            counter.hotKeys.removeIf(key -> counter.candidates.getOrDefault(key, 0) < threshold);
+        }
+    }
+
+    /*
+     * 各前缀当前的top-K热点key
+     * */
+    public Map<String, List<Map<String, Object>>> topKeys() {
+        Map<String, List<Map<String, Object>>> result = new LinkedHashMap<>();
+        counters.forEach((prefix, counter) -> result.put(prefix, counter.candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(topK)
+                .map(e -> {
+                    Map<String, Object> item = new LinkedHashMap<>();
+                    item.put("key", e.getKey());
+                    item.put("count", e.getValue());
+                    item.put("hot", counter.hotKeys.contains(e.getKey()));
+                    return item;
+                })
+                .collect(Collectors.toList())));
+        return result;
+    }
+
+    private static class PrefixCounter {
+        private final CountMinSketch sketch = new CountMinSketch(4, 4096);
+        /**
+         * 候选热点及估计值，数量有上限
+         */
+        private final Map<String, Integer> candidates = new ConcurrentHashMap<>();
+        private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+        private final int capacity;
+
+        private PrefixCounter(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private void track(String key, int estimate, int threshold) {
+            if (estimate >= threshold) {
+                hotKeys.add(key);
+            }
+            if (candidates.containsKey(key) || candidates.size() < capacity) {
+                candidates.put(key, estimate);
+                return;
+            }
+            //候选已满，替换掉计数最小的key
+            candidates.entrySet().stream().min(Map.Entry.comparingByValue())
+                    .filter(min -> min.getValue() < estimate)
+                    .ifPresent(min -> {
+                        candidates.remove(min.getKey());
+                        candidates.put(key, estimate);
+                    });
+        }
+    }
+}
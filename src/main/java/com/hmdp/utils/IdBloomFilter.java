@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_TOPIC;
+
+/**
+ * @ClassName IdBloomFilter
+ * @Description 店铺和优惠券id的布隆过滤器，在查询redis之前拦截不存在的id，防止缓存穿透
+ * @Author 12459
+ * @Date 2025/6/8 17:02
+ **/
+@Component
+@Slf4j
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+    public static final String VOUCHER = "voucher";
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private final ShopMapper shopMapper;
+    private final VoucherMapper voucherMapper;
+    private final RedissonClient redissonClient;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.bloom.fpp:0.001}")
+    private double fpp;
+    /**
+     * 预留的增长空间，过滤器容量 = 当前数量 * growth-factor
+     */
+    @Value("${hmdp.bloom.growth-factor:2.0}")
+    private double growthFactor;
+
+    /**
+     * 当前生效的过滤器，未构建完成前不拦截
+     */
+    private final Map<String, BloomFilter> filters = new ConcurrentHashMap<>();
+    /**
+     * 正在重建的过滤器，重建期间新增的id同时写入
+     */
+    private final Map<String, BloomFilter> building = new ConcurrentHashMap<>();
+
+    private RTopic topic;
+
+    public IdBloomFilter(ShopMapper shopMapper, VoucherMapper voucherMapper, RedissonClient redissonClient) {
+        this.shopMapper = shopMapper;
+        this.voucherMapper = voucherMapper;
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //订阅其他节点新增的id，消息格式：类型:id
+        topic = redissonClient.getTopic(BLOOM_ADD_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            int idx = msg.indexOf(':');
+            if (idx > 0) {
+                addLocal(msg.substring(0, idx), Long.parseLong(msg.substring(idx + 1)));
+            }
+        });
+    }
+
+    /*
+     * 启动时构建，之后定期重建
+     * */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.bloom.rebuild-interval-millis:3600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        rebuild(SHOP, shopMapper);
+        rebuild(VOUCHER, voucherMapper);
+    }
+
+    /*
+     * 判断id是否可能存在，返回false时一定不存在
+     * */
+    public boolean mightContain(String type, Long id) {
+        if (id == null) {
+            return false;
+        }
+        BloomFilter filter = filters.get(type);
+        //未启用或尚未构建完成，放行
+        return filter == null || filter.mightContain(id);
+    }
+
+    /*
+     * 新增id，并通知其他节点
+     * */
+    public void add(String type, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        addLocal(type, id);
+        topic.publish(type + ":" + id);
+    }
+
+    private void addLocal(String type, long id) {
+        BloomFilter filter = filters.get(type);
+        if (filter != null) {
+            filter.put(id);
+        }
+        BloomFilter next = building.get(type);
+        if (next != null) {
+            next.put(id);
+        }
+    }
+
+    private <T> void rebuild(String type, BaseMapper<T> mapper) {
+        long begin = System.currentTimeMillis();
+        try {
+            long count = mapper.selectCount(null).longValue();
+            BloomFilter next = new BloomFilter((long) (count * growthFactor) + LOAD_BATCH_SIZE, fpp);
+            building.put(type, next);
+            long loaded = streamIds(mapper, next::put);
+            filters.put(type, next);
+            log.info("布隆过滤器[{}]构建完成，id数量：{}，位数：{}，哈希函数：{}，耗时：{}ms",
+                    type, loaded, next.bitSize(), next.numHashes(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //构建失败时保留旧的过滤器
+            log.error("布隆过滤器[{}]构建失败", type, e);
+        } finally {
+            building.remove(type);
+        }
+    }
+
+    /*
+     * 按主键分批读取id，避免一次加载全表
+     * */
+    private <T> long streamIds(BaseMapper<T> mapper, LongConsumer consumer) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH_SIZE));
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                consumer.accept(lastId);
+            }
+            total += ids.size();
+            if (ids.size() < LOAD_BATCH_SIZE) {
+                return total;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * @ClassName JsonCacheCodec
+ * @Description 原有的json格式：普通缓存直接存对象，逻辑过期缓存存RedisData
+ * @Author 12459
+ * @Date 2025/6/12 10:40
+ **/
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+
+    @Override
+    public byte[] encode(CacheValue value) {
+        if (value.getExpireAt() <= 0) {
+            return JSONUtil.toJsonStr(value.getData()).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value.getData());
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(value.getExpireAt()), ZoneId.systemDefault()));
+        redisData.setRebuildCost(value.getRebuildCost() > 0 ? value.getRebuildCost() : null);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> CacheValue decode(byte[] bytes, Class<R> clazz) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        //不是RedisData，普通缓存
+        if (!json.containsKey("expireTime") || !json.containsKey("data")) {
+            return new CacheValue(json.toBean(clazz), 0, 0);
+        }
+
+        RedisData redisData = json.toBean(RedisData.class);
+        Object data = redisData.getData();
+        //兼容旧数据：重建时data被写成了json字符串
+        R r = data instanceof String
+                ? JSONUtil.toBean(StrUtil.toString(data), clazz)
+                : JSONUtil.parseObj(data).toBean(clazz);
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long rebuildCost = redisData.getRebuildCost() == null ? 0 : redisData.getRebuildCost();
+        return new CacheValue(r, expireAt, rebuildCost);
+    }
+}
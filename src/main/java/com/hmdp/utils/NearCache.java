@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_TOPIC;
+
+/**
+ * @ClassName NearCache
+ * @Description 进程内一级缓存，位于redis之前，通过redis发布订阅在各节点间失效
+ * @Author 12459
+ * @Date 2025/6/3 10:12
+ **/
+@Component
+@Slf4j
+public class NearCache implements MeterBinder {
+
+    /**
+     * 空值占位，对应redis中的空字符串
+     */
+    public static final Object NULL_VALUE = new Object();
+
+    /**
+     * 当前节点标识，用于忽略自己发出的失效消息
+     */
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private final RedissonClient redissonClient;
+
+    @Value("${hmdp.cache.near.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.near.maximum-size:10000}")
+    private long maximumSize;
+    @Value("${hmdp.cache.near.ttl-seconds:30}")
+    private long ttlSeconds;
+    @Value("${hmdp.cache.near.null-ttl-seconds:10}")
+    private long nullTtlSeconds;
+    @Value("${hmdp.cache.hot-key.enabled:false}")
+    private boolean hotEnabled;
+    @Value("${hmdp.cache.hot-key.local-ttl-seconds:5}")
+    private long hotTtlSeconds;
+
+    private Cache<String, Object> cache;
+    /**
+     * 热点key的短期本地副本，与一级缓存开关无关
+     */
+    private Cache<String, Object> hotCache;
+    private RTopic topic;
+
+    //失效消息统计
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder invalidationLagMillis = new LongAdder();
+    private final LongAccumulator maxInvalidationLagMillis = new LongAccumulator(Long::max, 0);
+
+    public NearCache(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (hotEnabled) {
+            hotCache = Caffeine.newBuilder()
+                    .maximumSize(1000)
+                    .expireAfterWrite(hotTtlSeconds, TimeUnit.SECONDS)
+                    .build();
+        }
+        if (!enabled && !hotEnabled) {
+            return;
+        }
+
+        //订阅失效消息
+        topic = redissonClient.getTopic(CACHE_INVALIDATE_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> onInvalidate(msg));
+
+        if (!enabled) {
+            return;
+        }
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<String, Object>() {
+                    @Override
+                    public long expireAfterCreate(String key, Object value, long currentTime) {
+                        //空值使用更短的有效期
+                        long ttl = value == NULL_VALUE ? nullTtlSeconds : ttlSeconds;
+                        return TimeUnit.SECONDS.toNanos(ttl);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Object value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Object value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+     * 查询一级缓存和热点副本，未命中返回null，命中空值返回NULL_VALUE
+     * */
+    public Object get(String key) {
+        Object value = enabled ? cache.getIfPresent(key) : null;
+        if (value == null && hotEnabled) {
+            value = hotCache.getIfPresent(key);
+        }
+        return value;
+    }
+
+    public void put(String key, Object value) {
+        if (!enabled) {
+            return;
+        }
+        cache.put(key, value == null ? NULL_VALUE : value);
+    }
+
+    /*
+     * 热点key提升为本地副本
+     * */
+    public void putHot(String key, Object value) {
+        if (!hotEnabled) {
+            return;
+        }
+        hotCache.put(key, value == null ? NULL_VALUE : value);
+    }
+
+    /*
+     * 仅失效本节点
+     * */
+    public void evictLocal(String key) {
+        if (enabled) {
+            cache.invalidate(key);
+        }
+        if (hotEnabled) {
+            hotCache.invalidate(key);
+        }
+    }
+
+    /*
+     * 失效本节点并通知其他节点
+     * */
+    public void invalidate(String key) {
+        if (!enabled && !hotEnabled) {
+            return;
+        }
+        evictLocal(key);
+        //消息格式：节点id|发送时间|key
+        topic.publish(NODE_ID + "|" + System.currentTimeMillis() + "|" + key);
+    }
+
+    private void onInvalidate(String msg) {
+        String[] parts = StrUtil.splitToArray(msg, '|', 3);
+        if (parts.length != 3 || NODE_ID.equals(parts[0])) {
+            return;
+        }
+        evictLocal(parts[2]);
+
+        //记录失效延迟
+        long lag = Math.max(0, System.currentTimeMillis() - Long.parseLong(parts[1]));
+        invalidations.increment();
+        invalidationLagMillis.add(lag);
+        maxInvalidationLagMillis.accumulate(lag);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (enabled) {
+            CaffeineCacheMetrics.monitor(registry, cache, "near");
+            FunctionTimer.builder("cache.near.invalidation.lag", this,
+                    c -> c.invalidations.sum(), c -> c.invalidationLagMillis.sum(), TimeUnit.MILLISECONDS)
+                    .description("收到其他节点失效消息的延迟")
+                    .register(registry);
+        }
+        if (hotEnabled) {
+            Gauge.builder("cache.hot.size", hotCache, Cache::estimatedSize)
+                    .description("热点key本地副本数量")
+                    .register(registry);
+        }
+    }
+
+    /*
+     * 一级缓存统计，用于评估容量
+     * */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        if (hotEnabled) {
+            stats.put("hotSize", hotCache.estimatedSize());
+        }
+        if (!enabled) {
+            return stats;
+        }
+        CacheStats cs = cache.stats();
+        long received = invalidations.sum();
+        stats.put("size", cache.estimatedSize());
+        stats.put("hitCount", cs.hitCount());
+        stats.put("missCount", cs.missCount());
+        stats.put("hitRate", cs.hitRate());
+        stats.put("evictionCount", cs.evictionCount());
+        stats.put("invalidationsReceived", received);
+        stats.put("avgInvalidationLagMillis", received == 0 ? 0 : invalidationLagMillis.sum() / received);
+        stats.put("maxInvalidationLagMillis", maxInvalidationLagMillis.get());
+        return stats;
+    }
+}
@@ -0,0 +1,468 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBatch;
+import org.redisson.api.RStreamAsync;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * @ClassName OrderJournal
+ * @Description 本地订单日志：内存映射的追加写文件，作为订单进入stream前的持久化缓冲
+ * 写入后按 flush-interval-millis 合并刷盘(group commit)，刷盘后append才返回；
+ * 后台线程按批把日志中的订单转发到stream，转发后持久化读取位置，读完的段文件删除
+ * 每条记录：长度(4字节) + crc32(4字节) + 订单字段json，段剩余空间不足时写入-1并切换到下一段
+ * 段文件名是段起始位置，位置在所有段中连续编号；转发至少一次，重复的订单写库时按订单id去重
+ * @Author 12459
+ * @Date 2025/7/3 15:20
+ **/
+@Component
+@Slf4j
+public class OrderJournal implements MeterBinder {
+
+    /**
+     * none：不使用；fallback：订单写入stream失败时写入日志；primary：订单先写入日志，再批量转发到stream
+     */
+    public static final String NONE = "none";
+    public static final String FALLBACK = "fallback";
+    public static final String PRIMARY = "primary";
+
+    private static final String SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int HEADER = 8;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final RedissonClient redissonClient;
+
+    @Value("${hmdp.order.journal.mode:none}")
+    private String mode;
+    @Value("${hmdp.order.journal.dir:data/order-journal}")
+    private String dir;
+    @Value("${hmdp.order.journal.segment-bytes:67108864}")
+    private int segmentBytes;
+    @Value("${hmdp.order.journal.flush-interval-millis:2}")
+    private long flushIntervalMillis;
+    @Value("${hmdp.order.journal.replay-batch-size:200}")
+    private int replayBatchSize;
+
+    private Path root;
+    private volatile boolean running = true;
+
+    /**
+     * 写入位置，由writeLock保护
+     */
+    private final Object writeLock = new Object();
+    private long writeBase;
+    private MappedByteBuffer writeBuffer;
+    private long written;
+    /**
+     * 已刷盘的位置，append等待刷盘时在flushMonitor上等待
+     */
+    private final Object flushMonitor = new Object();
+    private volatile long flushed;
+
+    /**
+     * 已转发到stream的位置，只由转发线程修改
+     */
+    private volatile long readOffset;
+    private long readBase;
+    private MappedByteBuffer readBuffer;
+
+    private Thread flusher;
+    private Thread replayer;
+
+    private Counter appended;
+    private Counter replayed;
+    private Timer flushTimer;
+
+    public OrderJournal(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        root = Paths.get(dir);
+        Files.createDirectories(root);
+        recover();
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        replayer = new Thread(this::replayLoop, "order-journal-replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+        log.info("本地订单日志：{}，模式：{}，待转发{}字节", root.toAbsolutePath(), mode, flushed - readOffset);
+    }
+
+    /*
+     * 停机时把已写入的记录刷盘，未转发的订单在下次启动后继续转发
+     * 先刷盘并发布刷盘位置再关闭：已写入的记录下次启动会被转发，等待刷盘的append必须成功返回，
+     * 否则调用方按失败归还库存后订单仍被转发；只有刷盘失败时等待的append才失败
+     * */
+    @PreDestroy
+    private void destroy() {
+        if (!isEnabled()) {
+            return;
+        }
+        flusher.interrupt();
+        replayer.interrupt();
+        synchronized (writeLock) {
+            try {
+                writeBuffer.force();
+                synchronized (flushMonitor) {
+                    flushed = written;
+                }
+            } catch (Exception e) {
+                log.error("关闭时订单日志刷盘失败", e);
+            } finally {
+                //持有writeLock，之后的append看到已关闭，不会再写入
+                running = false;
+            }
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+    }
+
+    public boolean isEnabled() {
+        return FALLBACK.equalsIgnoreCase(mode) || PRIMARY.equalsIgnoreCase(mode);
+    }
+
+    public boolean isPrimary() {
+        return PRIMARY.equalsIgnoreCase(mode);
+    }
+
+    /*
+     * 追加一条订单，刷盘后返回
+     * */
+    public void append(Map<String, String> fields) throws IOException {
+        if (!isEnabled()) {
+            throw new IOException("本地订单日志未启用");
+        }
+        byte[] payload = JSONUtil.toJsonStr(fields).getBytes(StandardCharsets.UTF_8);
+        if (HEADER + payload.length > segmentBytes) {
+            throw new IOException("订单记录超过段大小：" + payload.length);
+        }
+        long end;
+        synchronized (writeLock) {
+            if (!running) {
+                throw new IOException("本地订单日志已关闭");
+            }
+            if (writeBuffer.remaining() < HEADER + payload.length) {
+                roll();
+            }
+            writeBuffer.putInt(payload.length).putInt(crc(payload)).put(payload);
+            written = writeBase + writeBuffer.position();
+            end = written;
+        }
+        if (appended != null) {
+            appended.increment();
+        }
+        awaitFlushed(end);
+    }
+
+    private void awaitFlushed(long end) throws IOException {
+        synchronized (flushMonitor) {
+            while (flushed < end) {
+                if (!running) {
+                    throw new IOException("本地订单日志已关闭");
+                }
+                try {
+                    flushMonitor.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待订单日志刷盘被中断");
+                }
+            }
+        }
+    }
+
+    /*
+     * 当前段写满，写入段结束标记并刷盘，切换到下一段
+     * */
+    private void roll() throws IOException {
+        if (writeBuffer.remaining() >= 4) {
+            writeBuffer.putInt(END_OF_SEGMENT);
+        }
+        writeBuffer.force();
+        writeBase += writeBuffer.capacity();
+        writeBuffer = map(writeBase, FileChannel.MapMode.READ_WRITE);
+        written = writeBase;
+    }
+
+    /*
+     * 合并刷盘：每个间隔内写入的记录一次force
+     * */
+    private void flushLoop() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (writeLock) {
+                target = written;
+                buffer = writeBuffer;
+            }
+            if (target <= flushed) {
+                continue;
+            }
+            long begin = System.nanoTime();
+            buffer.force();
+            if (flushTimer != null) {
+                flushTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            }
+            synchronized (flushMonitor) {
+                flushed = target;
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * 把已刷盘的订单按批转发到stream，转发成功后保存读取位置
+     * 转发后、保存位置前宕机时订单会重复转发，由订单id去重
+     * */
+    private void replayLoop() {
+        while (running) {
+            try {
+                List<Map<String, String>> orders = new ArrayList<>(replayBatchSize);
+                long next = readBatch(orders);
+                if (next == readOffset) {
+                    TimeUnit.MILLISECONDS.sleep(Math.max(10, flushIntervalMillis));
+                    continue;
+                }
+                if (!orders.isEmpty()) {
+                    //XADD批量发送，一次往返
+                    RBatch batch = redissonClient.createBatch();
+                    RStreamAsync<String, String> stream = batch.getStream(SECKILL_ORDER_STREAM, StringCodec.INSTANCE);
+                    for (Map<String, String> fields : orders) {
+                        stream.addAsync(StreamAddArgs.entries(fields));
+                    }
+                    batch.execute();
+                    if (replayed != null) {
+                        replayed.increment(orders.size());
+                    }
+                }
+                commit(next);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("订单日志转发失败，稍后重试", e);
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * 从读取位置开始读取已刷盘的记录，返回读到的位置
+     * */
+    private long readBatch(List<Map<String, String>> orders) throws IOException {
+        long offset = readOffset;
+        long limit = flushed;
+        while (orders.size() < replayBatchSize && offset < limit) {
+            MappedByteBuffer buffer = readSegment(offset);
+            int pos = (int) (offset - readBase);
+            int length = buffer.capacity() - pos < HEADER ? END_OF_SEGMENT : buffer.getInt(pos);
+            if (length == END_OF_SEGMENT) {
+                offset = readBase + buffer.capacity();
+                continue;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(pos + HEADER);
+            slice.get(payload);
+            if (crc(payload) != buffer.getInt(pos + 4)) {
+                throw new IOException("订单日志记录损坏，位置：" + offset);
+            }
+            JSONObject json = JSONUtil.parseObj(new String(payload, StandardCharsets.UTF_8));
+            Map<String, String> fields = new LinkedHashMap<>();
+            json.forEach((k, v) -> fields.put(k, String.valueOf(v)));
+            orders.add(fields);
+            offset += HEADER + length;
+        }
+        return offset;
+    }
+
+    private MappedByteBuffer readSegment(long offset) throws IOException {
+        if (readBuffer == null || offset < readBase || offset >= readBase + readBuffer.capacity()) {
+            Map.Entry<Long, Path> segment = segments().floorEntry(offset);
+            if (segment == null) {
+                throw new IOException("找不到订单日志段，位置：" + offset);
+            }
+            readBase = segment.getKey();
+            readBuffer = map(readBase, FileChannel.MapMode.READ_ONLY);
+        }
+        return readBuffer;
+    }
+
+    /*
+     * 保存读取位置，删除已经读完的段
+     * */
+    private void commit(long offset) throws IOException {
+        Path tmp = root.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(offset).flip();
+            channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, root.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        readOffset = offset;
+
+        long current;
+        synchronized (writeLock) {
+            current = writeBase;
+        }
+        for (Map.Entry<Long, Path> segment : segments().headMap(Math.min(current, offset), false).entrySet()) {
+            if (segment.getKey() + Files.size(segment.getValue()) <= offset) {
+                Files.deleteIfExists(segment.getValue());
+                if (segment.getKey() == readBase) {
+                    readBuffer = null;
+                }
+            }
+        }
+    }
+
+    /*
+     * 启动时读取转发位置，扫描最后一段找到最后一条完整的记录，从其后继续写入
+     * */
+    private void recover() throws IOException {
+        Path checkpoint = root.resolve(CHECKPOINT);
+        TreeMap<Long, Path> segments = segments();
+        long offset;
+        if (Files.exists(checkpoint)) {
+            offset = ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong();
+        } else {
+            offset = segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        writeBase = segments.isEmpty() ? offset : segments.lastKey();
+        writeBuffer = map(writeBase, FileChannel.MapMode.READ_WRITE);
+        int pos = 0;
+        while (writeBuffer.capacity() - pos >= HEADER) {
+            int length = writeBuffer.getInt(pos);
+            if (length == END_OF_SEGMENT) {
+                pos = writeBuffer.capacity();
+                break;
+            }
+            if (length <= 0 || pos + HEADER + length > writeBuffer.capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer slice = writeBuffer.duplicate();
+            slice.position(pos + HEADER);
+            slice.get(payload);
+            if (crc(payload) != writeBuffer.getInt(pos + 4)) {
+                break;
+            }
+            pos += HEADER + length;
+        }
+        if (writeBuffer.capacity() - pos < HEADER) {
+            writeBase += writeBuffer.capacity();
+            writeBuffer = map(writeBase, FileChannel.MapMode.READ_WRITE);
+            pos = 0;
+        }
+        //页面回写无序，宕机时不完整记录之后可能还有残留数据，全部清零，避免之后被当成记录读出
+        for (int i = pos; i < writeBuffer.capacity(); i++) {
+            if (writeBuffer.get(i) != 0) {
+                writeBuffer.put(i, (byte) 0);
+            }
+        }
+        writeBuffer.position(pos);
+        written = writeBase + pos;
+        flushed = written;
+        readOffset = Math.min(offset, flushed);
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), path);
+            }
+        }
+        return segments;
+    }
+
+    /*
+     * 映射段文件，新建的段按segment-bytes分配，已有的段按文件大小映射
+     * */
+    private MappedByteBuffer map(long base, FileChannel.MapMode mapMode) throws IOException {
+        Path path = root.resolve(String.format("%020d%s", base, SUFFIX));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(),
+                mapMode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            long size = file.length() > 0 ? file.length() : segmentBytes;
+            return file.getChannel().map(mapMode, 0, size);
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        appended = Counter.builder("order.journal.appended")
+                .description("写入本地日志的订单")
+                .register(registry);
+        replayed = Counter.builder("order.journal.replayed")
+                .description("从本地日志转发到stream的订单")
+                .register(registry);
+        flushTimer = Timer.builder("order.journal.flush")
+                .description("本地日志一次刷盘的耗时")
+                .register(registry);
+        Gauge.builder("order.journal.backlog", this, j -> j.flushed - j.readOffset)
+                .description("已刷盘未转发的字节数")
+                .register(registry);
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.OrderResult;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.ORDER_RESULT_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_RESULT_TOPIC;
+
+/**
+ * @ClassName OrderResultNotifier
+ * @Description 订单结果推送：用户下单后用订单id建立SSE连接，订单落库或被拒绝时推送结果，代替轮询
+ * 连接可能建立在任意节点，结果通过redis发布订阅广播，每批订单一条消息；
+ * 结果同时写入redis保留一段时间，连接晚于落库建立时直接返回
+ * @Author 12459
+ * @Date 2025/6/27 10:42
+ **/
+@Component
+@Slf4j
+public class OrderResultNotifier implements MeterBinder {
+
+    private final RedissonClient redissonClient;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.order.result.timeout-millis:30000}")
+    private long timeoutMillis;
+    @Value("${hmdp.order.result.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    /**
+     * 本节点上等待结果的连接，按订单id索引
+     */
+    private final Map<Long, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private RTopic topic;
+
+    public OrderResultNotifier(RedissonClient redissonClient, StringRedisTemplate stringRedisTemplate) {
+        this.redissonClient = redissonClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        topic = redissonClient.getTopic(ORDER_RESULT_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            for (OrderResult result : JSONUtil.toList(msg, OrderResult.class)) {
+                //订单的所有连接都移出索引，每个连接都会被结束
+                List<Subscriber> list = subscribers.remove(result.getOrderId());
+                if (list != null) {
+                    list.forEach(s -> s.send(result));
+                }
+            }
+        });
+    }
+
+    /*
+     * 等待订单结果，先登记连接再查询已有结果，避免和发布之间的竞争
+     * */
+    public SseEmitter subscribe(Long userId, Long orderId) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(userId, emitter);
+        subscribers.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(subscriber);
+        connections.incrementAndGet();
+        Runnable cleanup = () -> {
+            if (subscriber.closed.compareAndSet(false, true)) {
+                connections.decrementAndGet();
+            }
+            subscribers.computeIfPresent(orderId, (id, list) -> {
+                list.remove(subscriber);
+                return list.isEmpty() ? null : list;
+            });
+        };
+        emitter.onCompletion(cleanup);
+        emitter.onTimeout(cleanup);
+        emitter.onError(e -> cleanup.run());
+
+        String json = stringRedisTemplate.opsForValue().get(ORDER_RESULT_KEY + orderId);
+        if (StrUtil.isNotBlank(json)) {
+            subscriber.send(JSONUtil.toBean(json, OrderResult.class));
+        }
+        return emitter;
+    }
+
+    /*
+     * 一批订单处理完成后调用：结果写入redis，再广播到所有节点
+     * */
+    public void publish(List<OrderResult> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        try {
+            Expiration ttl = Expiration.seconds(ttlSeconds);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (OrderResult result : results) {
+                    connection.set(bytes(ORDER_RESULT_KEY + result.getOrderId()), bytes(JSONUtil.toJsonStr(result)),
+                            ttl, RedisStringCommands.SetOption.UPSERT);
+                }
+                return null;
+            });
+            topic.publish(JSONUtil.toJsonStr(results));
+        } catch (Exception e) {
+            //推送失败不影响订单，用户连接超时后可以重新查询
+            log.error("推送订单结果失败：{}条", results.size(), e);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("order.result.connections", connections, AtomicInteger::get)
+                .description("等待订单结果的SSE连接")
+                .register(registry);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Subscriber {
+        private final Long userId;
+        private final SseEmitter emitter;
+        private final AtomicBoolean sent = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Subscriber(Long userId, SseEmitter emitter) {
+            this.userId = userId;
+            this.emitter = emitter;
+        }
+
+        /*
+         * 只推送一次，结果只推送给下单用户本人
+         * 其他用户订阅了该订单时推送不带结果的pending事件并结束连接，避免连接在移出索引后一直挂到超时
+         * */
+        private void send(OrderResult result) {
+            if (!sent.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (userId.equals(result.getUserId())) {
+                    emitter.send(SseEmitter.event().name("order").data(result));
+                } else {
+                    emitter.send(SseEmitter.event().name("pending").data(result.getOrderId()));
+                }
+                emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                emitter.completeWithError(e);
+            }
+        }
+    }
+}
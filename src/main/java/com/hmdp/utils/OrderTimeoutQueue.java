@@ -0,0 +1,334 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * @ClassName OrderTimeoutQueue
+ * @Description 未支付订单超时取消：订单落库后把超时时间写入 order:timeout 有序集合(订单id -> 超时时间)
+ * 各节点定期认领 horizon-millis 内到期的订单放入本地时间轮，到期后按批取消(状态1改为4)，
+ * 取消的数量按券归还到数据库和 seckill:stock:；只按分数范围读取，不扫描订单表
+ * 认领的订单分数后移 claim-lease-millis，节点宕机或取消失败时到期后被重新认领；取消只修改仍未支付的订单，重复处理没有影响
+ * 已下单记录保留，取消的订单仍占用 (user_id, voucher_id) 唯一索引，用户不能再次抢购同一张券
+ * @Author 12459
+ * @Date 2025/7/4 10:08
+ **/
+@Component
+@Slf4j
+public class OrderTimeoutQueue implements MeterBinder {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IVoucherOrderService voucherOrderService;
+    private final SeckillStockShards stockShards;
+    private final SoldOutMarker soldOutMarker;
+
+    @Value("${hmdp.order.timeout.enabled:false}")
+    private boolean enabled;
+    /**
+     * 下单后未支付的订单保留的时间
+     */
+    @Value("${hmdp.order.timeout.timeout-minutes:15}")
+    private long timeoutMinutes;
+    /**
+     * 时间轮每格的毫秒数和格数
+     */
+    @Value("${hmdp.order.timeout.tick-millis:100}")
+    private long tickMillis;
+    @Value("${hmdp.order.timeout.wheel-size:512}")
+    private int wheelSize;
+    /**
+     * 每次认领该时间内到期的订单，应大于认领间隔
+     */
+    @Value("${hmdp.order.timeout.horizon-millis:30000}")
+    private long horizonMillis;
+    @Value("${hmdp.order.timeout.claim-lease-millis:120000}")
+    private long claimLeaseMillis;
+    @Value("${hmdp.order.timeout.claim-batch-size:1000}")
+    private int claimBatchSize;
+    /**
+     * 本地时间轮中最多的订单数，超过时暂停认领
+     */
+    @Value("${hmdp.order.timeout.max-pending:100000}")
+    private int maxPending;
+    @Value("${hmdp.order.timeout.cancel-batch-size:200}")
+    private int cancelBatchSize;
+
+    /**
+     * 新认领的订单，由时间轮线程放入对应的格子
+     */
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<Long> due = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean running = true;
+    private Thread wheel;
+    private Thread canceller;
+
+    private Counter cancelledCounter;
+
+    public OrderTimeoutQueue(StringRedisTemplate stringRedisTemplate, @Lazy IVoucherOrderService voucherOrderService,
+                             SeckillStockShards stockShards, SoldOutMarker soldOutMarker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.voucherOrderService = voucherOrderService;
+        this.stockShards = stockShards;
+        this.soldOutMarker = soldOutMarker;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        //认领的订单在时间轮转完一圈前到期，重新认领前已经处理完
+        horizonMillis = Math.min(horizonMillis, tickMillis * wheelSize / 2);
+        claimLeaseMillis = Math.max(claimLeaseMillis, horizonMillis * 2);
+        wheel = new Thread(this::wheelLoop, "order-timeout-wheel");
+        wheel.setDaemon(true);
+        wheel.start();
+        canceller = new Thread(this::cancelLoop, "order-timeout-canceller");
+        canceller.setDaemon(true);
+        canceller.start();
+    }
+
+    /*
+     * 停机时未处理的订单留在redis中，认领到期后由其他节点处理
+     * */
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (wheel != null) {
+            wheel.interrupt();
+            canceller.interrupt();
+        }
+    }
+
+    /*
+     * 订单落库后、确认消息前登记超时时间，失败时消息留在pending-list中，重新投递时再次登记
+     * 超时时间按订单id中的下单时间计算，重复登记的结果相同，ZADD NX 不覆盖已有的分数，一批订单一次往返
+     * */
+    public void schedule(Collection<Long> orderIds) {
+        if (!enabled || orderIds.isEmpty()) {
+            return;
+        }
+        long timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        byte[][] args = new byte[2 + orderIds.size() * 2][];
+        args[0] = bytes(ORDER_TIMEOUT_KEY);
+        args[1] = bytes("NX");
+        int i = 2;
+        for (Long orderId : orderIds) {
+            args[i++] = bytes(String.valueOf(RedisIdWorker.createdAtMillis(orderId) + timeoutMillis));
+            args[i++] = bytes(orderId.toString());
+        }
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("ZADD", args));
+    }
+
+    /*
+     * 认领即将到期的订单放入时间轮，积压时分批认领直到本地订单达到上限
+     * */
+    @Scheduled(initialDelayString = "${hmdp.order.timeout.claim-interval-millis:5000}",
+            fixedDelayString = "${hmdp.order.timeout.claim-interval-millis:5000}")
+    public void claim() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            while (running && pending.get() < maxPending) {
+                String until = String.valueOf(System.currentTimeMillis() + horizonMillis);
+                List<?> items = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(ORDER_TIMEOUT_KEY),
+                        until, String.valueOf(Math.min(claimBatchSize, maxPending - pending.get())),
+                        String.valueOf(claimLeaseMillis));
+                if (items == null || items.isEmpty()) {
+                    return;
+                }
+                for (int i = 0; i < items.size(); i += 2) {
+                    incoming.add(new Timeout(Long.parseLong(items.get(i).toString()),
+                            (long) Double.parseDouble(items.get(i + 1).toString())));
+                }
+                pending.addAndGet(items.size() / 2);
+                if (items.size() / 2 < claimBatchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领超时订单失败", e);
+        }
+    }
+
+    /*
+     * 到期的订单按批取消，事务提交后把取消的数量归还到redis，最后从队列中删除
+     * 归还redis前宕机造成的库存泄漏由对账修复
+     * */
+    private void cancelLoop() {
+        while (running) {
+            List<Long> batch = new ArrayList<>(cancelBatchSize);
+            try {
+                batch.add(due.take());
+                due.drainTo(batch, cancelBatchSize - 1);
+                Map<Long, List<Long>> cancelled = voucherOrderService.cancelUnpaidOrders(batch);
+                cancelled.forEach((voucherId, userIds) -> {
+                    stockShards.restore(voucherId, userIds);
+                    soldOutMarker.clear(voucherId);
+                    if (cancelledCounter != null) {
+                        cancelledCounter.increment(userIds.size());
+                    }
+                });
+                stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY,
+                        batch.stream().map(String::valueOf).toArray());
+                if (!cancelled.isEmpty()) {
+                    log.info("取消超时未支付订单：{}", cancelled.entrySet().stream()
+                            .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().size())));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                //留在redis中，认领到期后重新处理
+                log.error("取消超时订单失败：{}条", batch.size(), e);
+            } finally {
+                pending.addAndGet(-batch.size());
+            }
+        }
+    }
+
+    /*
+     * 时间轮线程：每格结束时放入新认领的订单，再处理当前格
+     * */
+    private void wheelLoop() {
+        Wheel timer = new Wheel(wheelSize, tickMillis, System.currentTimeMillis());
+        while (running) {
+            long sleep = timer.nextTickAt() - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = incoming.poll()) != null) {
+                timer.add(timeout);
+            }
+            timer.advance(due);
+        }
+    }
+
+    static class Timeout {
+        private final long orderId;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+
+        Timeout(long orderId, long deadline) {
+            this.orderId = orderId;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 哈希时间轮：每格一个链表，订单按到期的格数放入，转满一圈减一轮，轮数为0时到期
+     * 只由时间轮线程访问，不需要加锁
+     */
+    static class Wheel {
+
+        private final Timeout[] buckets;
+        private final long tickMillis;
+        private final long startMillis;
+        private long tick;
+
+        Wheel(int wheelSize, long tickMillis, long startMillis) {
+            this.buckets = new Timeout[wheelSize];
+            this.tickMillis = tickMillis;
+            this.startMillis = startMillis;
+        }
+
+        /*
+         * 当前格在该时间结束，结束后才处理，订单不会早于超时时间取消
+         * */
+        long nextTickAt() {
+            return startMillis + (tick + 1) * tickMillis;
+        }
+
+        void add(Timeout timeout) {
+            //已经过期的放到当前格，本次处理
+            long ticks = Math.max((timeout.deadline - startMillis) / tickMillis, tick);
+            timeout.rounds = (ticks - tick) / buckets.length;
+            int index = (int) (ticks % buckets.length);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+
+        /*
+         * 处理当前格：轮数为0的订单到期，其余减一轮，然后转到下一格
+         * */
+        void advance(Collection<Long> due) {
+            int index = (int) (tick % buckets.length);
+            Timeout prev = null;
+            Timeout timeout = buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    if (prev == null) {
+                        buckets[index] = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    timeout.next = null;
+                    due.add(timeout.orderId);
+                } else {
+                    timeout.rounds--;
+                    prev = timeout;
+                }
+                timeout = next;
+            }
+            tick++;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        cancelledCounter = Counter.builder("order.timeout.cancelled")
+                .description("超时未支付取消的订单，即归还的库存")
+                .register(registry);
+        Gauge.builder("order.timeout.pending", pending, AtomicInteger::get)
+                .description("本地时间轮中等待到期的订单")
+                .register(registry);
+    }
+}
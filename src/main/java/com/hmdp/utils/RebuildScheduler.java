@@ -0,0 +1,366 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @ClassName RebuildScheduler
+ * @Description 缓存重建调度：同一个key排队期间只重建一次，队列有上限，满时丢弃最旧的任务，
+ * 热点key优先执行，每次重建有超时时间，超时后提前释放重建锁
+ * @Author 12459
+ * @Date 2025/6/20 14:26
+ **/
+@Component
+@Slf4j
+public class RebuildScheduler implements MeterBinder {
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+    @Value("${hmdp.cache.rebuild.timeout-millis:3000}")
+    private long timeoutMillis;
+
+    /**
+     * 热点key和普通key分两个队列，先执行热点队列
+     */
+    private final Deque<Task> hotQueue = new ArrayDeque<>();
+    private final Deque<Task> normalQueue = new ArrayDeque<>();
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition notEmpty = queueLock.newCondition();
+
+    /**
+     * 排队中的key，用于去重
+     */
+    private final Map<String, Task> pending = new ConcurrentHashMap<>();
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    private volatile MeterRegistry registry;
+
+    private ExecutorService workers;
+    private ScheduledExecutorService timeoutTimer;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger seq = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "cache-rebuild-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::workLoop);
+        }
+        timeoutTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-rebuild-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        workers.shutdownNow();
+        timeoutTimer.shutdownNow();
+        //未执行的任务释放重建锁
+        queueLock.lock();
+        try {
+            hotQueue.forEach(Task::release);
+            normalQueue.forEach(Task::release);
+            hotQueue.clear();
+            normalQueue.clear();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /*
+     * 该key是否已在排队
+     * */
+    public boolean isPending(String key) {
+        return pending.containsKey(key);
+    }
+
+    /*
+     * 提交重建任务，release在任务完成、超时或被丢弃时执行且只执行一次
+     * 返回false表示该key已在排队，调用方需要自行释放锁
+     * */
+    public boolean submit(String keyPrefix, String key, boolean hot, Runnable rebuild, Runnable release) {
+        return submit(keyPrefix, Collections.singletonList(key), hot, rebuild, release);
+    }
+
+    /*
+     * 一个任务重建多个key，按每个key去重：任一key已在排队时不提交，这些key排队期间单独提交也会被去重
+     * */
+    public boolean submit(String keyPrefix, Collection<String> keys, boolean hot, Runnable rebuild, Runnable release) {
+        Task task = new Task(keyPrefix, new ArrayList<>(keys), rebuild, release);
+        if (!running || !register(task)) {
+            statsOf(keyPrefix).deduplicated.increment();
+            return false;
+        }
+        Task dropped = null;
+        queueLock.lock();
+        try {
+            (hot ? hotQueue : normalQueue).addLast(task);
+            //超出上限时丢弃最旧的任务，优先丢弃普通key
+            if (hotQueue.size() + normalQueue.size() > queueCapacity) {
+                dropped = normalQueue.isEmpty() ? hotQueue.pollFirst() : normalQueue.pollFirst();
+            }
+            notEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        if (dropped != null) {
+            unregister(dropped);
+            statsOf(dropped.keyPrefix).dropped.increment();
+            dropped.release();
+            log.warn("缓存重建队列已满，丢弃任务：{}", dropped.key);
+        }
+        return true;
+    }
+
+    private boolean register(Task task) {
+        for (int i = 0; i < task.keys.size(); i++) {
+            if (pending.putIfAbsent(task.keys.get(i), task) != null) {
+                task.keys.subList(0, i).forEach(key -> pending.remove(key, task));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void unregister(Task task) {
+        task.keys.forEach(key -> pending.remove(key, task));
+    }
+
+    private Task take() throws InterruptedException {
+        queueLock.lock();
+        try {
+            while (hotQueue.isEmpty() && normalQueue.isEmpty()) {
+                notEmpty.await();
+            }
+            return hotQueue.isEmpty() ? normalQueue.pollFirst() : hotQueue.pollFirst();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void workLoop() {
+        while (running) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                //超时中断只在任务执行期间发出，等待任务时被中断说明正在关闭
+                return;
+            }
+            //开始执行后同一个key可以再次排队
+            unregister(task);
+            run(task);
+        }
+    }
+
+    private void run(Task task) {
+        PrefixStats ps = statsOf(task.keyPrefix);
+        long begin = System.currentTimeMillis();
+        ps.queueWaitMillis.add(begin - task.enqueuedAt);
+        ps.maxQueueWaitMillis.accumulate(begin - task.enqueuedAt);
+
+        //超时后释放重建锁并中断执行该任务的线程，避免卡住的数据库查询一直持有锁
+        task.start();
+        ScheduledFuture<?> timeout = timeoutTimer.schedule(() -> {
+            if (task.release()) {
+                ps.timeouts.increment();
+                log.warn("缓存重建超时：{}，超过{}ms", task.key, timeoutMillis);
+                task.interrupt();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            task.rebuild.run();
+            ps.succeeded.increment();
+        } catch (Exception e) {
+            ps.failed.increment();
+            log.error("缓存重建失败：{}", task.key, e);
+        } finally {
+            timeout.cancel(false);
+            task.release();
+            //任务结束后不会再被中断，清除执行期间产生的中断标记，线程继续处理后续任务
+            task.finish();
+            Thread.interrupted();
+            long cost = System.currentTimeMillis() - begin;
+            ps.latencyMillis.add(cost);
+            ps.maxLatencyMillis.accumulate(cost);
+        }
+    }
+
+    private PrefixStats statsOf(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, p -> {
+            PrefixStats ps = new PrefixStats();
+            if (registry != null) {
+                bindPrefix(registry, p, ps);
+            }
+            return ps;
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("cache.rebuild.queue", this, RebuildScheduler::queueSize)
+                .description("排队中的缓存重建任务")
+                .register(registry);
+        this.registry = registry;
+        stats.forEach((prefix, ps) -> bindPrefix(registry, prefix, ps));
+    }
+
+    private static void bindPrefix(MeterRegistry registry, String prefix, PrefixStats ps) {
+        FunctionTimer.builder("cache.rebuild", ps,
+                p -> p.succeeded.sum() + p.failed.sum(), p -> p.latencyMillis.sum(), TimeUnit.MILLISECONDS)
+                .tag("prefix", prefix)
+                .register(registry);
+        FunctionTimer.builder("cache.rebuild.queue.wait", ps,
+                p -> p.succeeded.sum() + p.failed.sum(), p -> p.queueWaitMillis.sum(), TimeUnit.MILLISECONDS)
+                .tag("prefix", prefix)
+                .register(registry);
+        counter(registry, prefix, "failed", ps, ps.failed);
+        counter(registry, prefix, "timeout", ps, ps.timeouts);
+        counter(registry, prefix, "dropped", ps, ps.dropped);
+        counter(registry, prefix, "deduplicated", ps, ps.deduplicated);
+    }
+
+    private static void counter(MeterRegistry registry, String prefix, String type, PrefixStats ps, LongAdder adder) {
+        FunctionCounter.builder("cache.rebuild.events", ps, p -> adder.sum())
+                .tag("prefix", prefix)
+                .tag("type", type)
+                .register(registry);
+    }
+
+    public int queueSize() {
+        queueLock.lock();
+        try {
+            return hotQueue.size() + normalQueue.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /*
+     * 各前缀的重建统计
+     * */
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("queueSize", queueSize());
+        result.put("queueCapacity", queueCapacity);
+        stats.forEach((prefix, ps) -> {
+            long executed = ps.succeeded.sum() + ps.failed.sum();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("succeeded", ps.succeeded.sum());
+            item.put("failed", ps.failed.sum());
+            item.put("timeouts", ps.timeouts.sum());
+            item.put("dropped", ps.dropped.sum());
+            item.put("deduplicated", ps.deduplicated.sum());
+            item.put("avgLatencyMillis", executed == 0 ? 0 : ps.latencyMillis.sum() / executed);
+            item.put("maxLatencyMillis", ps.maxLatencyMillis.get());
+            item.put("avgQueueWaitMillis", executed == 0 ? 0 : ps.queueWaitMillis.sum() / executed);
+            item.put("maxQueueWaitMillis", ps.maxQueueWaitMillis.get());
+            result.put(prefix, item);
+        });
+        return result;
+    }
+
+    private static class Task {
+        private final String keyPrefix;
+        private final String key;
+        private final List<String> keys;
+        private final Runnable rebuild;
+        private final Runnable release;
+        private final long enqueuedAt = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
+        /**
+         * 正在执行该任务的线程，任务结束后为null，超时只中断仍在执行的任务
+         */
+        private Thread runner;
+
+        private Task(String keyPrefix, List<String> keys, Runnable rebuild, Runnable release) {
+            this.keyPrefix = keyPrefix;
+            this.key = keys.size() == 1 ? keys.get(0) : keys.toString();
+            this.keys = keys;
+            this.rebuild = rebuild;
+            this.release = release;
+        }
+
+        private synchronized void start() {
+            runner = Thread.currentThread();
+        }
+
+        private synchronized void finish() {
+            runner = null;
+        }
+
+        /*
+         * 与finish互斥，线程结束该任务后不会收到迟到的中断，中断不会落到同一线程的下一个任务上
+         * */
+        private synchronized void interrupt() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        /*
+         * 只释放一次，返回本次调用是否执行了释放
+         * */
+        private boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                release.run();
+            } catch (Exception e) {
+                log.error("释放重建锁失败：{}", key, e);
+            }
+            return true;
+        }
+    }
+
+    private static class PrefixStats {
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder deduplicated = new LongAdder();
+        private final LongAdder latencyMillis = new LongAdder();
+        private final LongAdder queueWaitMillis = new LongAdder();
+        private final LongAccumulator maxLatencyMillis = new LongAccumulator(Long::max, 0);
+        private final LongAccumulator maxQueueWaitMillis = new LongAccumulator(Long::max, 0);
+    }
+}
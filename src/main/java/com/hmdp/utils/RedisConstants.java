@@ -14,7 +14,21 @@ public class RedisConstants {
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String CACHE_INVALIDATE_TOPIC = "cache:invalidate";
+    public static final String BLOOM_ADD_TOPIC = "bloom:add";
+    public static final String SECKILL_SOLD_OUT_TOPIC = "seckill:sold-out";
+    public static final String ORDER_RESULT_TOPIC = "order:result";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String ORDER_RESULT_KEY = "order:result:";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -4,6 +4,7 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 
@@ -20,6 +21,8 @@ public class RedisIdWorker {
 
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     private StringRedisTemplate stringRedisTemplate;
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
@@ -29,14 +32,36 @@ public class RedisIdWorker {
     public long nextId(String keyPrefix) {
         //生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
 
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
         //生成序列号
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
 
         //拼接并返回
+        return compose(timestamp, count);
+    }
+
+    /*
+     * 序列号也可以在lua脚本中INCR：调用前确定时间戳和序列号key，脚本只为通过校验的请求分配序列号，
+     * 返回序列号后再用compose拼接，lua的数字是double，不能直接拼出64位的id
+     * */
+    public long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    public String counterKey(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
+
+    /*
+     * 从id还原生成时间的毫秒数，时间戳是本地时间按UTC换算的秒数，按同样的方式还原
+     * */
+    public static long createdAtMillis(long id) {
+        LocalDateTime createdAt = LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+        return createdAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYERS_KEY;
+
+/**
+ * @ClassName SeckillBuyers
+ * @Description 秒杀券已下单用户的存储，用于一人一单
+ * set：seckill:order:券id 集合，每个用户几十字节
+ * bitmap：用户id是连续自增的，按id每2^20个用户一块，seckill:buyers:券id:块号 位图中用户id对应的位为1，
+ * 一块最多128KB，稀疏的id只会创建用到的块
+ * 两种方式下，已下单记录都在秒杀结束后 ttl-after-end-hours 过期
+ * 切换到bitmap后lua脚本仍会检查原来的集合，所有节点切换后可以调用migrate把集合转为位图
+ * @Author 12459
+ * @Date 2025/7/1 14:05
+ **/
+@Component
+@Slf4j
+public class SeckillBuyers {
+
+    public static final String SET = "set";
+    public static final String BITMAP = "bitmap";
+
+    /**
+     * 每块位图的用户数为 2^CHUNK_BITS，与lua脚本中的1048576一致
+     */
+    private static final int CHUNK_BITS = 20;
+    /**
+     * 遍历位图时每次GETRANGE读取的字节数
+     */
+    private static final int SLICE_BYTES = 8192;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards stockShards;
+    private final SeckillWindow seckillWindow;
+    private final IUserService userService;
+
+    @Value("${hmdp.seckill.buyers.store:set}")
+    private String store;
+    @Value("${hmdp.seckill.buyers.ttl-after-end-hours:24}")
+    private long ttlAfterEndHours;
+
+    public SeckillBuyers(StringRedisTemplate stringRedisTemplate, SeckillStockShards stockShards,
+                         SeckillWindow seckillWindow, IUserService userService) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stockShards = stockShards;
+        this.seckillWindow = seckillWindow;
+        this.userService = userService;
+    }
+
+    public String store() {
+        return isBitmap() ? BITMAP : SET;
+    }
+
+    public boolean isBitmap() {
+        return BITMAP.equalsIgnoreCase(store);
+    }
+
+    /*
+     * 传给lua脚本的过期时间，秒杀结束后保留的毫秒数
+     * */
+    public String ttlArg() {
+        return String.valueOf(TimeUnit.HOURS.toMillis(ttlAfterEndHours));
+    }
+
+    /*
+     * 位图key，分片时和该分片的库存在同一个slot
+     * */
+    public String bitmapKey(Long voucherId, int shard, int shards, long userId) {
+        return prefix(voucherId, shard, shards) + (userId >>> CHUNK_BITS);
+    }
+
+    public long offset(long userId) {
+        return userId & ((1L << CHUNK_BITS) - 1);
+    }
+
+    private String prefix(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_BUYERS_KEY + voucherId + ":" : SECKILL_BUYERS_KEY + "{" + voucherId + ":" + shard + "}:";
+    }
+
+    /*
+     * 撤销用户的下单记录
+     * */
+    public void remove(Long voucherId, int shard, int shards, Long userId) {
+        if (isBitmap()) {
+            stringRedisTemplate.opsForValue().setBit(bitmapKey(voucherId, shard, shards, userId), offset(userId), false);
+        } else {
+            String orderKey = shards <= 1 ? stockShards.orderKeys(voucherId).get(0) : stockShards.orderKey(voucherId, shard);
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        }
+    }
+
+    /*
+     * 所有可能存在的位图key，块号由当前最大的用户id决定
+     * */
+    public List<String> bitmapKeys(Long voucherId) {
+        long chunks = (maxUserId() >>> CHUNK_BITS) + 1;
+        int shards = stockShards.shardCount(voucherId);
+        List<String> keys = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            for (long chunk = 0; chunk < chunks; chunk++) {
+                keys.add(prefix(voucherId, shard, shards) + chunk);
+            }
+        }
+        return keys;
+    }
+
+    /*
+     * 当前最大的用户id，没有用户时为0
+     * */
+    long maxUserId() {
+        User last = userService.query().select("id").orderByDesc("id").last("limit 1").one();
+        return last == null ? 0 : last.getId();
+    }
+
+    /*
+     * 已下单人数，bitmap模式下包括切换前集合中的用户
+     * */
+    public long count(Long voucherId) {
+        long total = 0;
+        for (String key : stockShards.orderKeys(voucherId)) {
+            Long size = stringRedisTemplate.opsForSet().size(key);
+            total += size == null ? 0 : size;
+        }
+        if (isBitmap()) {
+            for (String key : bitmapKeys(voucherId)) {
+                Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(bytes(key)));
+                total += bits == null ? 0 : bits;
+            }
+        }
+        return total;
+    }
+
+    /*
+     * 分批遍历已下单的用户：集合用SSCAN，位图每次读取一段再解码，不会一次加载全部用户
+     * SSCAN在rehash期间可能返回重复的用户
+     * */
+    public void forEachBuyer(Long voucherId, int batchSize, Consumer<List<Long>> consumer) throws IOException {
+        List<Long> batch = new ArrayList<>(batchSize);
+        for (String key : stockShards.orderKeys(voucherId)) {
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                    .scan(key, ScanOptions.scanOptions().count(batchSize).build())) {
+                while (cursor.hasNext()) {
+                    batch.add(Long.valueOf(cursor.next()));
+                    if (batch.size() >= batchSize) {
+                        consumer.accept(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+        }
+        if (isBitmap()) {
+            for (String key : bitmapKeys(voucherId)) {
+                long base = Long.parseLong(key.substring(key.lastIndexOf(':') + 1)) << CHUNK_BITS;
+                for (long start = 0; start < (1L << CHUNK_BITS) / 8; start += SLICE_BYTES) {
+                    long from = start;
+                    byte[] slice = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                            connection.getRange(bytes(key), from, from + SLICE_BYTES - 1));
+                    if (slice == null || slice.length == 0) {
+                        //位图只写到最大的偏移，后面没有数据
+                        break;
+                    }
+                    for (int i = 0; i < slice.length; i++) {
+                        int b = slice[i] & 0xFF;
+                        //redis位图中每个字节的最高位是最小的偏移
+                        for (int bit = 0; b != 0 && bit < 8; bit++) {
+                            if ((b & (0x80 >>> bit)) != 0) {
+                                batch.add(base + (from + i) * 8 + bit);
+                                if (batch.size() >= batchSize) {
+                                    consumer.accept(batch);
+                                    batch = new ArrayList<>(batchSize);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    /*
+     * 把集合中的用户写入位图后删除集合，返回迁移的人数
+     * 需要在所有节点都切换到bitmap后执行，迁移期间新下单的用户只会写入位图
+     * */
+    public long migrate(Long voucherId, int batchSize) throws IOException {
+        if (!isBitmap()) {
+            throw new IllegalStateException("当前已下单存储不是bitmap");
+        }
+        int shards = stockShards.shardCount(voucherId);
+        long expireAt = seckillWindow.endMillis(voucherId);
+        long ttlMillis = TimeUnit.HOURS.toMillis(ttlAfterEndHours);
+        long migrated = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            String orderKey = shards <= 1 ? stockShards.orderKeys(voucherId).get(0) : stockShards.orderKey(voucherId, shard);
+            List<Long> batch = new ArrayList<>(batchSize);
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                    .scan(orderKey, ScanOptions.scanOptions().count(batchSize).build())) {
+                while (cursor.hasNext()) {
+                    batch.add(Long.valueOf(cursor.next()));
+                    if (batch.size() >= batchSize) {
+                        migrated += setBits(voucherId, shard, shards, batch, expireAt, ttlMillis);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                migrated += setBits(voucherId, shard, shards, batch, expireAt, ttlMillis);
+            }
+            stringRedisTemplate.unlink(orderKey);
+        }
+        log.info("秒杀券{}的已下单集合迁移到位图：{}人", voucherId, migrated);
+        return migrated;
+    }
+
+    private int setBits(Long voucherId, int shard, int shards, List<Long> userIds, long endMillis, long ttlMillis) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                byte[] key = bytes(bitmapKey(voucherId, shard, shards, userId));
+                connection.setBit(key, offset(userId), true);
+                if (endMillis > 0 && ttlMillis > 0) {
+                    connection.pExpireAt(key, endMillis + ttlMillis);
+                }
+            }
+            return null;
+        });
+        return userIds.size();
+    }
+
+    /*
+     * 已下单记录占用的redis内存(MEMORY USAGE)，用于比较两种存储方式
+     * */
+    public Map<String, Object> memoryUsage(Long voucherId) {
+        List<String> keys = new ArrayList<>(stockShards.orderKeys(voucherId));
+        if (isBitmap()) {
+            keys.addAll(bitmapKeys(voucherId));
+        }
+        long bytes = 0;
+        for (String key : keys) {
+            Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.execute("MEMORY", bytes("USAGE"), bytes(key)));
+            if (usage instanceof Number) {
+                bytes += ((Number) usage).longValue();
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("store", store());
+        result.put("buyers", count(voucherId));
+        result.put("memoryBytes", bytes);
+        return result;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,315 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RStream;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * @ClassName SeckillReconciler
+ * @Description 秒杀库存对账：定期比对进行中(及刚结束)的秒杀券在三处的数据
+ * redis剩余库存 + 已下单集合人数 应等于 数据库剩余库存 + 数据库订单数(都等于初始库存)
+ * 已下单用户分批遍历(集合用SSCAN，位图分段读取)，每批用一条 user_id in (...) 查询数据库，不会一次加载全部用户
+ * 在redis中下单、数据库中没有订单的用户，超过确认时间仍缺失才认定为丢单，避免把处理中的订单算进去
+ * 开启修复时丢单重新写入stream，连续两次对账相同的库存泄漏归还到redis
+ * @Author 12459
+ * @Date 2025/6/28 15:12
+ **/
+@Component
+@Slf4j
+public class SeckillReconciler implements MeterBinder {
+
+    private static final String LOCK_KEY = "lock:seckill:reconcile";
+
+    private final ISeckillVoucherService seckillVoucherService;
+    private final IVoucherOrderService voucherOrderService;
+    private final RedissonClient redissonClient;
+    private final SeckillStockShards stockShards;
+    private final SoldOutMarker soldOutMarker;
+    private final RedisIdWorker redisIdWorker;
+    private final SeckillStockLease stockLease;
+    private final SeckillBuyers seckillBuyers;
+
+    @Value("${hmdp.reconcile.enabled:true}")
+    private boolean enabled;
+    /**
+     * 开启后自动修复，否则只输出指标和日志
+     */
+    @Value("${hmdp.reconcile.repair:false}")
+    private boolean repair;
+    /**
+     * 每次SSCAN和查询数据库的用户数
+     */
+    @Value("${hmdp.reconcile.batch-size:500}")
+    private int batchSize;
+    /**
+     * 订单缺失超过该时间才认定为丢单，应大于订单从进入stream到落库的最长时间
+     */
+    @Value("${hmdp.reconcile.confirm-millis:180000}")
+    private long confirmMillis;
+    /**
+     * 已结束的秒杀券继续对账的时间
+     */
+    @Value("${hmdp.reconcile.ended-grace-minutes:60}")
+    private long endedGraceMinutes;
+    /**
+     * 每张券最多记录的疑似丢单用户
+     */
+    @Value("${hmdp.reconcile.max-suspects:10000}")
+    private int maxSuspects;
+
+    private final Map<Long, Report> reports = new ConcurrentHashMap<>();
+    /**
+     * 疑似丢单：券id -> 用户id -> 第一次发现的时间
+     */
+    private final Map<Long, Map<Long, Long>> suspects = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastLeaks = new ConcurrentHashMap<>();
+    private final Set<Long> boundVouchers = ConcurrentHashMap.newKeySet();
+
+    private volatile MeterRegistry registry;
+    private Counter requeuedCounter;
+    private Counter restoredCounter;
+    private final RStream<String, String> orderStream;
+
+    public SeckillReconciler(ISeckillVoucherService seckillVoucherService, IVoucherOrderService voucherOrderService,
+                             RedissonClient redissonClient,
+                             SeckillStockShards stockShards, SoldOutMarker soldOutMarker, RedisIdWorker redisIdWorker,
+                             SeckillStockLease stockLease, SeckillBuyers seckillBuyers) {
+        this.seckillVoucherService = seckillVoucherService;
+        this.voucherOrderService = voucherOrderService;
+        this.redissonClient = redissonClient;
+        this.stockShards = stockShards;
+        this.soldOutMarker = soldOutMarker;
+        this.redisIdWorker = redisIdWorker;
+        this.stockLease = stockLease;
+        this.seckillBuyers = seckillBuyers;
+        this.orderStream = redissonClient.getStream(SECKILL_ORDER_STREAM, StringCodec.INSTANCE);
+    }
+
+    /*
+     * 多个节点只有拿到锁的一个执行
+     * */
+    @Scheduled(initialDelayString = "${hmdp.reconcile.interval-millis:300000}",
+            fixedDelayString = "${hmdp.reconcile.interval-millis:300000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now)
+                    .ge("end_time", now.minusMinutes(endedGraceMinutes))
+                    .list();
+            Set<Long> active = new HashSet<>();
+            for (SeckillVoucher voucher : vouchers) {
+                active.add(voucher.getVoucherId());
+                try {
+                    reconcile(voucher);
+                } catch (Exception e) {
+                    log.error("秒杀券对账失败：{}", voucher.getVoucherId(), e);
+                }
+            }
+            //不再对账的券清除记录，指标归零
+            reports.keySet().retainAll(active);
+            suspects.keySet().retainAll(active);
+            lastLeaks.keySet().retainAll(active);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher) throws IOException {
+        Long voucherId = voucher.getVoucherId();
+        long now = System.currentTimeMillis();
+        Map<Long, Long> voucherSuspects = suspects.computeIfAbsent(voucherId, id -> new ConcurrentHashMap<>());
+
+        //先读redis再读数据库，处理中的订单只会让数据库一侧暂时偏少
+        //各节点租用未售出的库存仍算作redis库存
+        long redisStock = stockShards.remaining(voucherId) + stockLease.outstanding(voucherId);
+        long buyers = seckillBuyers.count(voucherId);
+        //只保留前max-suspects个缺失的用户，其余只计数
+        //SSCAN在rehash期间可能返回重复的元素，缺失计数只作参考，修复以去重后的用户为准
+        Set<Long> missingNow = new HashSet<>();
+        long[] missingCount = new long[1];
+        seckillBuyers.forEachBuyer(voucherId, batchSize,
+                batch -> missingCount[0] += findMissing(voucherId, batch, missingNow));
+        long missing = missingCount[0];
+        SeckillVoucher current = seckillVoucherService.getById(voucherId);
+        long dbStock = current == null ? voucher.getStock() : current.getStock();
+        long dbOrders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+
+        //已经落库的用户不再怀疑，新发现的记录时间
+        voucherSuspects.keySet().retainAll(missingNow);
+        for (Long userId : missingNow) {
+            voucherSuspects.putIfAbsent(userId, now);
+        }
+        List<Long> confirmed = voucherSuspects.entrySet().stream()
+                .filter(e -> now - e.getValue() >= confirmMillis)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        //数据库中有订单、redis中没有下单记录的用户数
+        long orphans = Math.max(0, dbOrders - (buyers - missing));
+        //正数表示redis少了库存(扣减了库存却没有下单记录)，负数表示redis多出库存
+        long leak = (dbStock + dbOrders) - (redisStock + buyers);
+
+        Report report = new Report();
+        report.setVoucherId(voucherId);
+        report.setRedisStock(redisStock);
+        report.setRedisBuyers(buyers);
+        report.setDbStock(dbStock);
+        report.setDbOrders(dbOrders);
+        report.setSuspectedOrders(missing);
+        report.setMissingOrders(confirmed.size());
+        report.setOrphanOrders(orphans);
+        report.setStockLeak(leak);
+        report.setCheckedAt(LocalDateTime.now());
+        reports.put(voucherId, report);
+        bindVoucher(voucherId);
+
+        if (!confirmed.isEmpty() || orphans != 0 || leak != 0) {
+            log.warn("秒杀券对账不一致：{}", report);
+        }
+        if (!repair) {
+            lastLeaks.put(voucherId, leak);
+            return;
+        }
+
+        //丢单重新写入stream，订单表的唯一索引保证不会重复下单
+        for (Long userId : confirmed) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put("userId", userId.toString());
+            fields.put("voucherId", voucherId.toString());
+            fields.put("id", String.valueOf(redisIdWorker.nextId("order")));
+            orderStream.add(StreamAddArgs.entries(fields));
+            voucherSuspects.remove(userId);
+            if (requeuedCounter != null) {
+                requeuedCounter.increment();
+            }
+        }
+        if (!confirmed.isEmpty()) {
+            log.warn("秒杀券{}重新提交丢失的订单：{}条", voucherId, confirmed.size());
+        }
+
+        //连续两次相同的泄漏才归还，且不能是redis下单记录丢失造成的
+        Long lastLeak = lastLeaks.put(voucherId, leak);
+        if (leak > 0 && orphans == 0 && lastLeak != null && lastLeak == leak) {
+            stockShards.restore(voucherId, leak);
+            soldOutMarker.clear(voucherId);
+            lastLeaks.remove(voucherId);
+            if (restoredCounter != null) {
+                restoredCounter.increment(leak);
+            }
+            log.warn("秒杀券{}归还泄漏的库存：{}", voucherId, leak);
+        }
+    }
+
+    /*
+     * 一条 in 查询找出这批用户中数据库没有订单的，返回缺失的人数
+     * */
+    private int findMissing(Long voucherId, List<Long> userIds, Set<Long> missing) {
+        Set<Long> found = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", userIds)
+                .list()
+                .stream()
+                .map(VoucherOrder::getUserId)
+                .collect(Collectors.toSet());
+        int count = 0;
+        for (Long userId : userIds) {
+            if (!found.contains(userId)) {
+                count++;
+                if (missing.size() < maxSuspects) {
+                    missing.add(userId);
+                }
+            }
+        }
+        return count;
+    }
+
+    public Map<Long, Report> reports() {
+        return reports;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        requeuedCounter = Counter.builder("seckill.reconcile.repairs")
+                .description("对账修复次数")
+                .tag("type", "requeue_order")
+                .register(registry);
+        restoredCounter = Counter.builder("seckill.reconcile.repairs")
+                .description("对账修复次数")
+                .tag("type", "restore_stock")
+                .register(registry);
+        this.registry = registry;
+        reports.keySet().forEach(this::bindVoucher);
+    }
+
+    private void bindVoucher(Long voucherId) {
+        MeterRegistry registry = this.registry;
+        if (registry == null || !boundVouchers.add(voucherId)) {
+            return;
+        }
+        gauge(registry, voucherId, "missing_orders", Report::getMissingOrders);
+        gauge(registry, voucherId, "orphan_orders", Report::getOrphanOrders);
+        gauge(registry, voucherId, "stock_leak", Report::getStockLeak);
+    }
+
+    private void gauge(MeterRegistry registry, Long voucherId, String type, ToDoubleFunction<Report> value) {
+        Gauge.builder("seckill.reconcile.diff", reports, m -> {
+                    Report report = m.get(voucherId);
+                    return report == null ? 0 : value.applyAsDouble(report);
+                })
+                .description("对账差异")
+                .tag("voucher", voucherId.toString())
+                .tag("type", type)
+                .register(registry);
+    }
+
+    @Data
+    public static class Report {
+        private Long voucherId;
+        private long redisStock;
+        private long redisBuyers;
+        private long dbStock;
+        private long dbOrders;
+        private long suspectedOrders;
+        private long missingOrders;
+        private long orphanOrders;
+        private long stockLeak;
+        private LocalDateTime checkedAt;
+    }
+}
@@ -0,0 +1,480 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * @ClassName SeckillStockLease
+ * @Description 秒杀库存租约：节点一次从 seckill:stock: 租用一段库存，本地用CAS扣减，
+ * 本地库存不足时同步续租，低于水位时异步补充；本地没有库存时直接拒绝，不访问redis
+ * 一人一单仍由redis的已下单集合保证：各请求线程扣减本地库存后排队，由一个线程按券合并成一次lua调用，
+ * 脚本中SADD成功的用户写入stream，重复下单的用户归还本地库存
+ * 每个节点持有的库存记录在 seckill:lease:券id 中并定期续期，停机时归还，
+ * 节点宕机后租约到期，由其他节点回收
+ * 只用于未分片的秒杀券；本地没有库存时其他节点可能还有租用的库存，所以不会广播售罄标记
+ * @Author 12459
+ * @Date 2025/6/30 10:26
+ **/
+@Component
+@Slf4j
+public class SeckillStockLease implements MeterBinder {
+
+    private static final DefaultRedisScript<List> LEASE_SCRIPT = script("stock_lease.lua", List.class);
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT = script("stock_lease_return.lua", Long.class);
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT = script("stock_lease_reclaim.lua", Long.class);
+    private static final DefaultRedisScript<List> ADMIT_SCRIPT = script("seckill_lease.lua", List.class);
+
+    /**
+     * seckill_lease.lua 返回的租约已被回收
+     */
+    private static final int REVOKED = 6;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillBuyers seckillBuyers;
+    private final RedisIdWorker redisIdWorker;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+    /**
+     * 每次租用的库存数
+     */
+    @Value("${hmdp.seckill.lease.block-size:50}")
+    private long blockSize;
+    /**
+     * 本地库存低于该值时异步续租
+     */
+    @Value("${hmdp.seckill.lease.low-watermark:10}")
+    private long lowWatermark;
+    /**
+     * 租约有效期，定期续期；超过有效期未使用的库存归还
+     */
+    @Value("${hmdp.seckill.lease.lease-seconds:30}")
+    private long leaseSeconds;
+    /**
+     * 其他节点的租约到期超过该时间后回收，容忍节点间的时钟误差
+     */
+    @Value("${hmdp.seckill.lease.reclaim-grace-seconds:10}")
+    private long reclaimGraceSeconds;
+    /**
+     * redis库存用完后，本地没有库存时直接拒绝的时间，超过后再续租一次
+     */
+    @Value("${hmdp.seckill.lease.exhausted-retry-millis:1000}")
+    private long exhaustedRetryMillis;
+    /**
+     * 一次lua调用最多校验的用户数，以及第一个请求最多等待的时间
+     */
+    @Value("${hmdp.seckill.lease.batch-max-size:100}")
+    private int batchMaxSize;
+    @Value("${hmdp.seckill.lease.batch-linger-millis:2}")
+    private long batchLingerMillis;
+    @Value("${hmdp.seckill.lease.maintain-interval-millis:5000}")
+    private long maintainIntervalMillis;
+    /**
+     * 异步续租的线程数，每张券同时只有一个续租任务
+     */
+    @Value("${hmdp.seckill.lease.refill-threads:2}")
+    private int refillThreads;
+    @Value("${server.port:8081}")
+    private int serverPort;
+
+    private String node;
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final BlockingQueue<Admission> admissions = new LinkedBlockingQueue<>();
+    private Thread admitter;
+    private ScheduledExecutorService maintainer;
+    private ExecutorService refiller;
+    private volatile boolean running = true;
+
+    private Counter localRejects;
+    private Counter duplicates;
+    private Counter leasedStock;
+    private DistributionSummary batchSize;
+
+    public SeckillStockLease(StringRedisTemplate stringRedisTemplate, SeckillBuyers seckillBuyers,
+                             RedisIdWorker redisIdWorker) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillBuyers = seckillBuyers;
+        this.redisIdWorker = redisIdWorker;
+    }
+
+    @PostConstruct
+    private void init() {
+        //每个进程一个节点标识：宕机后在租约到期前重启，不会接管之前持有的库存，旧租约到期后被回收
+        node = NetUtil.getLocalHostName() + ":" + serverPort + ":" + UUID.fastUUID().toString(true).substring(0, 8);
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger seq = new AtomicInteger();
+        refiller = new ThreadPoolExecutor(refillThreads, refillThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(1000), r -> {
+            Thread t = new Thread(r, "seckill-lease-refill-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        admitter = new Thread(this::admitLoop, "seckill-lease-admitter");
+        admitter.setDaemon(true);
+        admitter.start();
+        maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seckill-lease-maintainer");
+            t.setDaemon(true);
+            return t;
+        });
+        maintainer.scheduleWithFixedDelay(this::maintain, maintainIntervalMillis, maintainIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * 停机时归还所有未使用的库存
+     * */
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (admitter != null) {
+            admitter.interrupt();
+            maintainer.shutdownNow();
+            refiller.shutdownNow();
+        }
+        leases.forEach((voucherId, lease) -> giveBack(voucherId, lease.available.getAndSet(0)));
+        leases.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+     * 租约模式下单，成功返回订单id；失败返回 seckill.lua 结果的相反数：-1 库存不足，-2 重复下单，-4 尚未开始，-5 已经结束
+     * 订单id由脚本中为成功的用户分配的序列号拼接，被拒绝的请求不占用订单id
+     * 租约已被回收时作废本地库存，重新租用后再试一次
+     * */
+    public long admit(Long voucherId, Long userId) throws InterruptedException {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (!acquire(voucherId, lease)) {
+                if (localRejects != null) {
+                    localRejects.increment();
+                }
+                return -1;
+            }
+            Admission admission = new Admission(voucherId, userId);
+            admissions.put(admission);
+            int r;
+            try {
+                r = admission.result.get();
+            } catch (ExecutionException e) {
+                //脚本执行失败，按未下单处理
+                lease.available.incrementAndGet();
+                throw new IllegalStateException("秒杀下单失败", e.getCause());
+            }
+            if (r == REVOKED) {
+                //本地库存已回到库存池，不归还
+                revoke(voucherId, lease);
+                continue;
+            }
+            if (r != 0) {
+                //重复下单或不在秒杀时间内，归还本地库存
+                lease.available.incrementAndGet();
+                if (r == 2 && duplicates != null) {
+                    duplicates.increment();
+                }
+                return -r;
+            }
+            return admission.orderId;
+        }
+        return -1;
+    }
+
+    private void revoke(Long voucherId, Lease lease) {
+        long stale = lease.available.getAndSet(0);
+        if (stale > 0) {
+            log.warn("秒杀券{}的租约已被回收，作废本地库存：{}", voucherId, stale);
+        }
+    }
+
+    /*
+     * 本地扣减一个库存，不足时同步续租一次
+     * redis库存已经用完时，一段时间内直接拒绝，不再每个请求都去续租
+     * */
+    private boolean acquire(Long voucherId, Lease lease) {
+        long now = System.currentTimeMillis();
+        lease.lastUsedAt = now;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            long n;
+            while ((n = lease.available.get()) > 0) {
+                if (lease.available.compareAndSet(n, n - 1)) {
+                    if (n - 1 <= lowWatermark && !lease.exhausted) {
+                        refillAsync(voucherId, lease);
+                    }
+                    return true;
+                }
+            }
+            if (attempt == 0) {
+                if (lease.exhausted && now - lease.refilledAt < exhaustedRetryMillis) {
+                    return false;
+                }
+                synchronized (lease) {
+                    if (lease.available.get() <= 0) {
+                        refill(voucherId, lease, blockSize);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void refillAsync(Long voucherId, Lease lease) {
+        if (!lease.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refiller.execute(() -> {
+                try {
+                    synchronized (lease) {
+                        refill(voucherId, lease, blockSize);
+                    }
+                } catch (Exception e) {
+                    log.error("续租秒杀库存失败：{}", voucherId, e);
+                } finally {
+                    lease.refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //续租排满时等本地库存用完后同步续租
+            lease.refilling.set(false);
+        }
+    }
+
+    /*
+     * 续租一段库存，同时续期，amount为0时只续期
+     * 持有数量不大于0说明租约已被其他节点回收，本地剩余的库存作废
+     * */
+    private void refill(Long voucherId, Lease lease, long amount) {
+        List<?> r = stringRedisTemplate.execute(LEASE_SCRIPT,
+                Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_KEY + voucherId),
+                node, String.valueOf(amount), String.valueOf(System.currentTimeMillis() + leaseSeconds * 1000));
+        long take = ((Number) r.get(0)).longValue();
+        long held = ((Number) r.get(1)).longValue();
+        if (held <= 0) {
+            revoke(voucherId, lease);
+        }
+        lease.available.addAndGet(take);
+        if (amount > 0) {
+            lease.exhausted = take == 0;
+            lease.refilledAt = System.currentTimeMillis();
+        }
+        if (take > 0 && leasedStock != null) {
+            leasedStock.increment(take);
+        }
+    }
+
+    private void giveBack(Long voucherId, long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RETURN_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_KEY + voucherId),
+                    node, String.valueOf(amount));
+        } catch (Exception e) {
+            //归还失败的库存在租约到期后由其他节点回收
+            log.error("归还秒杀库存失败：{}，数量：{}", voucherId, amount, e);
+        }
+    }
+
+    /*
+     * 续期正在使用的租约，归还长时间未使用的库存，回收宕机节点的租约
+     * 在独立的线程中执行，不会被共用调度线程中的长任务耽误续期，导致租约被回收
+     * */
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long reclaimBefore = now - reclaimGraceSeconds * 1000;
+        leases.forEach((voucherId, lease) -> {
+            try {
+                synchronized (lease) {
+                    if (now - lease.lastUsedAt > leaseSeconds * 1000 / 2) {
+                        giveBack(voucherId, lease.available.getAndSet(0));
+                    } else {
+                        refill(voucherId, lease, 0);
+                    }
+                }
+                Long reclaimed = stringRedisTemplate.execute(RECLAIM_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_KEY + voucherId),
+                        String.valueOf(reclaimBefore));
+                if (reclaimed != null && reclaimed > 0) {
+                    log.warn("回收到期的秒杀库存租约：{}，数量：{}", voucherId, reclaimed);
+                }
+            } catch (Exception e) {
+                log.error("维护秒杀库存租约失败：{}", voucherId, e);
+            }
+        });
+    }
+
+    /*
+     * 所有节点租用但还未售出的库存，对账时计入redis库存
+     * */
+    public long outstanding(Long voucherId) {
+        long total = 0;
+        for (Map.Entry<Object, Object> entry : stringRedisTemplate.opsForHash().entries(SECKILL_LEASE_KEY + voucherId).entrySet()) {
+            if (!entry.getKey().toString().endsWith(":expire")) {
+                total += Long.parseLong(entry.getValue().toString());
+            }
+        }
+        return total;
+    }
+
+    /*
+     * 合并排队的请求，每张券一次lua调用
+     * */
+    private void admitLoop() {
+        while (running) {
+            List<Admission> batch = new ArrayList<>(batchMaxSize);
+            try {
+                batch.add(admissions.take());
+                long deadline = System.currentTimeMillis() + batchLingerMillis;
+                while (batch.size() < batchMaxSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    Admission next = wait > 0 ? admissions.poll(wait, TimeUnit.MILLISECONDS) : admissions.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                batch.forEach(a -> a.result.completeExceptionally(e));
+                admissions.forEach(a -> a.result.completeExceptionally(e));
+                return;
+            }
+            if (batchSize != null) {
+                batchSize.record(batch.size());
+            }
+            Map<Long, List<Admission>> byVoucher = new LinkedHashMap<>();
+            for (Admission a : batch) {
+                byVoucher.computeIfAbsent(a.voucherId, id -> new ArrayList<>()).add(a);
+            }
+            byVoucher.forEach(this::admitBatch);
+        }
+    }
+
+    private void admitBatch(Long voucherId, List<Admission> batch) {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = redisIdWorker.timestamp(now);
+        List<String> args = new ArrayList<>(batch.size() + 6);
+        args.add(voucherId.toString());
+        args.add(node);
+        args.add(seckillBuyers.store());
+        args.add(seckillBuyers.ttlArg());
+        args.add(redisIdWorker.counterKey("order", now));
+        args.add(String.valueOf(timestamp));
+        for (Admission a : batch) {
+            args.add(a.userId.toString());
+        }
+        try {
+            List<?> results = stringRedisTemplate.execute(ADMIT_SCRIPT,
+                    Arrays.asList(SECKILL_ORDER_KEY + voucherId, SECKILL_LEASE_KEY + voucherId,
+                            SECKILL_WINDOW_KEY + voucherId),
+                    args.toArray());
+            //按用户顺序返回 结果, 序列号
+            for (int i = 0; i < batch.size(); i++) {
+                Admission a = batch.get(i);
+                int r = ((Number) results.get(i * 2)).intValue();
+                if (r == 0) {
+                    a.orderId = RedisIdWorker.compose(timestamp, ((Number) results.get(i * 2 + 1)).longValue());
+                }
+                a.result.complete(r);
+            }
+        } catch (Exception e) {
+            log.error("租约模式批量下单失败：{}，{}条", voucherId, batch.size(), e);
+            batch.forEach(a -> a.result.completeExceptionally(e));
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        localRejects = Counter.builder("seckill.lease.rejects")
+                .description("本地库存不足直接拒绝的请求")
+                .register(registry);
+        duplicates = Counter.builder("seckill.lease.duplicates")
+                .description("批量校验时发现的重复下单")
+                .register(registry);
+        leasedStock = Counter.builder("seckill.lease.leased")
+                .description("从redis租用的库存")
+                .register(registry);
+        batchSize = DistributionSummary.builder("seckill.lease.batch.size")
+                .description("一次lua调用校验的用户数")
+                .register(registry);
+    }
+
+    private static <T> DefaultRedisScript<T> script(String location, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private static class Lease {
+        private final AtomicLong available = new AtomicLong();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        /**
+         * 上次续租时redis库存已经用完，不再异步续租，等本地用完时同步续租一次
+         */
+        private volatile boolean exhausted;
+        private volatile long refilledAt;
+        private volatile long lastUsedAt = System.currentTimeMillis();
+    }
+
+    private static class Admission {
+        private final Long voucherId;
+        private final Long userId;
+        /**
+         * 下单成功后由合并线程写入，在result完成前赋值
+         */
+        private volatile long orderId;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private Admission(Long voucherId, Long userId) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * @ClassName SeckillStockShards
+ * @Description 秒杀库存分片：一张券的库存拆到N个key，每个分片用 {券id:分片} 作为hash tag，
+ * 在redis集群中分散到不同的slot；用户按id固定到一个分片，该分片的已下单集合用于一人一单
+ * 分片数为1时使用原来的 seckill:stock:券id
+ * @Author 12459
+ * @Date 2025/6/25 16:08
+ **/
+@Component
+public class SeckillStockShards {
+
+    /**
+     * 未分片的库存key不存在时lua脚本返回的结果，可能是库存尚未加载，或本地缓存的分片数已过期
+     */
+    public static final int NOT_LOADED = 7;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 新建秒杀券默认的分片数
+     */
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultShards;
+
+    /**
+     * 没有分片数记录的券按未分片处理，只缓存 miss-ttl-seconds，之后重新读取
+     */
+    @Value("${hmdp.seckill.shard-miss-ttl-seconds:5}")
+    private long missTtlSeconds;
+
+    /**
+     * 分片数在创建后不再变化，读到后本地缓存
+     */
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    private Cache<Long, Boolean> misses;
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void initCache() {
+        misses = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(missTtlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public int defaultShards() {
+        return defaultShards;
+    }
+
+    /*
+     * 写入库存，shards大于1时平均拆分，余数放在前面的分片
+     * 未分片时也记录分片数，各节点读到后即可缓存
+     * */
+    public void init(Long voucherId, int stock, int shards) {
+        misses.invalidate(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.set(bytes(SECKILL_STOCK_KEY + voucherId), bytes(String.valueOf(stock)));
+                connection.set(bytes(SECKILL_SHARDS_KEY + voucherId), bytes("1"));
+                return null;
+            });
+            shardCounts.put(voucherId, 1);
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                connection.set(bytes(stockKey(voucherId, i)), bytes(String.valueOf(shardStock)));
+            }
+            connection.set(bytes(SECKILL_SHARDS_KEY + voucherId), bytes(String.valueOf(shards)));
+            return null;
+        });
+        shardCounts.put(voucherId, shards);
+    }
+
+    public int shardCount(Long voucherId) {
+        Integer shards = shardCounts.get(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        if (misses.getIfPresent(voucherId) != null) {
+            return 1;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (StrUtil.isBlank(value)) {
+            misses.put(voucherId, Boolean.TRUE);
+            return 1;
+        }
+        shards = Integer.parseInt(value);
+        shardCounts.put(voucherId, shards);
+        return shards;
+    }
+
+    /*
+     * lua脚本发现未分片的库存key不存在时，丢弃未读到分片数的缓存
+     * */
+    public void invalidate(Long voucherId) {
+        misses.invalidate(voucherId);
+    }
+
+    /*
+     * 用户固定的分片
+     * */
+    public int homeShard(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    public String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /*
+     * 该券所有的已下单集合，未分片时为 seckill:order:券id
+     * */
+    public List<String> orderKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /*
+     * 归还来源不明的库存，分片时平均放回各分片，余数放在剩余库存最少的分片
+     * */
+    public void restore(Long voucherId, long amount) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, amount);
+            return;
+        }
+        long[] stocks = shardStocks(voucherId, shards);
+        List<Integer> order = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong(i -> stocks[i]));
+        long[] amounts = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            amounts[order.get(i)] = amount / shards + (i < amount % shards ? 1 : 0);
+        }
+        incrementShards(voucherId, amounts);
+    }
+
+    /*
+     * 归还用户的订单占用的库存，放回用户所在的分片，即下单时扣减的分片
+     * */
+    public void restore(Long voucherId, Collection<Long> userIds) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, userIds.size());
+            return;
+        }
+        long[] amounts = new long[shards];
+        for (Long userId : userIds) {
+            amounts[homeShard(userId, shards)]++;
+        }
+        incrementShards(voucherId, amounts);
+    }
+
+    private void incrementShards(Long voucherId, long[] amounts) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < amounts.length; i++) {
+                if (amounts[i] > 0) {
+                    connection.incrBy(bytes(stockKey(voucherId, i)), amounts[i]);
+                }
+            }
+            return null;
+        });
+    }
+
+    /*
+     * 剩余库存，分片时为各分片之和
+     * 每个分片只会被单条DECR修改，求和不会重复计算正在借用的库存
+     * */
+    public long remaining(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return StrUtil.isBlank(value) ? 0 : Long.parseLong(value);
+        }
+        long total = 0;
+        for (long stock : shardStocks(voucherId, shards)) {
+            total += Math.max(0, stock);
+        }
+        return total;
+    }
+
+    private long[] shardStocks(Long voucherId, int shards) {
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                connection.get(bytes(stockKey(voucherId, i)));
+            }
+            return null;
+        });
+        long[] stocks = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            Object value = values.get(i);
+            stocks[i] = value == null ? 0 : Long.parseLong(value.toString());
+        }
+        return stocks;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * @ClassName SeckillWindow
+ * @Description 秒杀时间窗口，保存在redis中供lua脚本原子校验，本节点缓存一份用于提前拦截
+ * 分片库存的券每个分片保存一份，保证脚本只访问同一个slot
+ * @Author 12459
+ * @Date 2025/6/27 9:41
+ **/
+@Component
+public class SeckillWindow {
+
+    public static final int OPEN = 0;
+    public static final int NOT_STARTED = 4;
+    public static final int ENDED = 5;
+
+    private static final long[] NO_WINDOW = new long[0];
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillStockShards stockShards;
+
+    @Value("${hmdp.seckill.window-cache-seconds:60}")
+    private long cacheSeconds;
+
+    /**
+     * 券id -> [开始毫秒, 结束毫秒]，redis中没有窗口时为空数组
+     */
+    private LoadingCache<Long, long[]> windows;
+
+    public SeckillWindow(StringRedisTemplate stringRedisTemplate, SeckillStockShards stockShards) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stockShards = stockShards;
+    }
+
+    @PostConstruct
+    private void init() {
+        windows = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheSeconds, TimeUnit.SECONDS)
+                .build(this::load);
+    }
+
+    public String windowKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_WINDOW_KEY + voucherId : SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /*
+     * 写入时间窗口，分片时每个分片一份
+     * */
+    public void save(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        int shards = stockShards.shardCount(voucherId);
+        byte[] begin = bytes(String.valueOf(toMillis(beginTime)));
+        byte[] end = bytes(String.valueOf(toMillis(endTime)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                byte[] key = bytes(windowKey(voucherId, i, shards));
+                connection.hSet(key, bytes("begin"), begin);
+                connection.hSet(key, bytes("end"), end);
+            }
+            return null;
+        });
+        windows.invalidate(voucherId);
+    }
+
+    /*
+     * 按本地缓存的窗口判断，返回OPEN、NOT_STARTED或ENDED
+     * */
+    public int check(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        if (window.length == 0) {
+            //没有窗口信息，交给lua脚本判断
+            return OPEN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        return now > window[1] ? ENDED : OPEN;
+    }
+
+    /*
+     * 秒杀结束时间(毫秒)，没有窗口信息时返回0
+     * */
+    public long endMillis(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        return window.length == 0 ? 0 : window[1];
+    }
+
+    private long[] load(Long voucherId) {
+        String key = windowKey(voucherId, 0, stockShards.shardCount(voucherId));
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, Arrays.<Object>asList("begin", "end"));
+        if (values.get(0) == null || values.get(1) == null) {
+            return NO_WINDOW;
+        }
+        return new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
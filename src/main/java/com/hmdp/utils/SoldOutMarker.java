@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_TOPIC;
+
+/**
+ * @ClassName SoldOutMarker
+ * @Description 秒杀券售罄标记，本节点标记后直接拒绝请求，不再执行lua脚本
+ * 通过redis发布订阅通知其他节点，补充库存时清除；标记有有效期，错过清除消息时也能自行恢复
+ * @Author 12459
+ * @Date 2025/6/26 11:20
+ **/
+@Component
+@Slf4j
+public class SoldOutMarker {
+
+    private final RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:60}")
+    private long ttlSeconds;
+
+    private Cache<Long, Boolean> soldOut;
+    private RTopic topic;
+
+    public SoldOutMarker(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+    }
+
+    @PostConstruct
+    private void init() {
+        soldOut = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        //消息格式：+券id 售罄，-券id 补充库存
+        topic = redissonClient.getTopic(SECKILL_SOLD_OUT_TOPIC, StringCodec.INSTANCE);
+        topic.addListener(String.class, (channel, msg) -> {
+            Long voucherId = Long.valueOf(msg.substring(1));
+            if (msg.charAt(0) == '+') {
+                soldOut.put(voucherId, Boolean.TRUE);
+            } else {
+                soldOut.invalidate(voucherId);
+            }
+        });
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /*
+     * lua脚本返回库存不足时标记，已标记的不重复广播
+     * */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.asMap().putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            log.info("秒杀券已售罄：{}", voucherId);
+            topic.publish("+" + voucherId);
+        }
+    }
+
+    /*
+     * 补充库存后清除所有节点的标记
+     * */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        topic.publish("-" + voucherId);
+    }
+}
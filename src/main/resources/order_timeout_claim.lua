@@ -0,0 +1,12 @@
+---
+--- 认领即将到期的未支付订单
+--- KEYS[1] 订单超时队列 order:timeout，成员为订单id，分数为超时时间
+--- ARGV[1] 认领超时时间不晚于该值的订单，ARGV[2] 最多认领的数量，ARGV[3] 认领的有效毫秒数
+--- 返回 {订单id, 超时时间, ...}；认领的订单分数后移，节点宕机时到期后被其他节点重新认领
+---
+local items = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[2]))
+local lease = tonumber(ARGV[3])
+for i = 1, #items, 2 do
+    redis.call('zadd', KEYS[1], tonumber(items[i + 1]) + lease, items[i])
+end
+return items
@@ -6,30 +6,73 @@
 --参数列表
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+-- 订单序列号key，通过校验后才INCR，订单id = 时间戳 << 32 | 序列号，由调用方拼接
+local counterKey = ARGV[3]
+-- 已下单用户的存储：set 集合；bitmap 按用户id每2^20个一块的位图
+local buyerMode = ARGV[4] or 'set'
+-- 已下单记录在秒杀结束后保留的毫秒数，0表示不过期
+local buyerTtl = tonumber(ARGV[5] or '0')
+local timestamp = ARGV[6]
 
 -- 数据key
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
+local windowKey = 'seckill:window:' .. voucherId
+local buyerKey, offset
+if buyerMode == 'bitmap' then
+    local uid = tonumber(userId)
+    buyerKey = 'seckill:buyers:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+    offset = uid % 1048576
+end
 
+-- 校验秒杀时间窗口，使用redis的时间，没有窗口信息时不限制
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if window[1] and window[2] then
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if now < tonumber(window[1]) then
+        return {4}  -- 尚未开始，返回 4
+    end
+    if now > tonumber(window[2]) then
+        return {5}  -- 已经结束，返回 5
+    end
+end
 
 -- 获取库存
 local stock = redis.call('get', stockKey)
 if not stock then
-    return 1  -- 库存不存在，返回 1
+    return {7}  -- 库存未加载(或该券已分片)，不能当作售罄，返回 7
 end
 
 stock = tonumber(stock)
 if not stock or stock <= 0 then
-    return 1  -- 非数字或库存不足，返回 1
+    return {1}  -- 非数字或库存不足，返回 1
 end
 
--- 判断是否已下单
+-- 判断是否已下单，bitmap模式下同时检查切换前的集合
 if redis.call('sismember', orderKey, userId) == 1 then
-    return 2  -- 已下单，返回 2
+    return {2}  -- 已下单，返回 2
+end
+if buyerKey and redis.call('getbit', buyerKey, offset) == 1 then
+    return {2}
 end
 
 -- 减库存 + 记录用户
 redis.call('decr', stockKey)
-redis.call('sadd', orderKey, userId)
+local recordKey = orderKey
+if buyerKey then
+    recordKey = buyerKey
+    redis.call('setbit', buyerKey, offset, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+-- 已下单记录在秒杀结束后过期
+if buyerTtl > 0 and window[2] and redis.call('pttl', recordKey) == -1 then
+    redis.call('pexpireat', recordKey, tonumber(window[2]) + buyerTtl)
+end
+-- 分配订单序列号
+local seq = redis.call('incr', counterKey)
+-- 发送订单到stream，XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'ts', timestamp, 'seq', seq)
 
-return 0  -- 成功
\ No newline at end of file
+return {0, seq}  -- 成功
\ No newline at end of file
@@ -0,0 +1,97 @@
+---
+--- 租约模式下批量校验一人一单，库存已在节点本地扣减
+--- KEYS[1] 已下单集合 seckill:order:券id
+--- KEYS[2] 租约 seckill:lease:券id
+--- KEYS[3] 时间窗口 seckill:window:券id
+--- ARGV[1] 券id，ARGV[2] 节点，ARGV[3] 已下单用户的存储 set/bitmap，ARGV[4] 已下单记录在秒杀结束后保留的毫秒数
+--- ARGV[5] 订单序列号key，ARGV[6] 订单id的时间戳部分，之后每个参数为一个用户id
+--- 按用户顺序返回 结果, 序列号 ...，结果：0 成功，订单已写入stream；2 重复下单；4 尚未开始；5 已经结束；
+--- 6 租约已被回收(节点的租约字段或到期时间不存在，或持有的库存少于本批用户数)，整批不下单
+--- 只为成功的用户分配序列号，其他用户的序列号为0
+---
+local voucherId = ARGV[1]
+local counterKey = ARGV[5]
+local timestamp = ARGV[6]
+local count = #ARGV - 6
+
+local function reject(code)
+    local results = {}
+    for i = 1, count do
+        results[#results + 1] = code
+        results[#results + 1] = 0
+    end
+    return results
+end
+
+-- 校验秒杀时间窗口，与 seckill.lua 相同
+local window = redis.call('hmget', KEYS[3], 'begin', 'end')
+if window[1] and window[2] then
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if now < tonumber(window[1]) then
+        return reject(4)
+    end
+    if now > tonumber(window[2]) then
+        return reject(5)
+    end
+end
+
+-- 租约被回收后节点本地的库存已经回到库存池，不能再卖
+local lease = redis.call('hmget', KEYS[2], ARGV[2], ARGV[2] .. ':expire')
+if not lease[1] or not lease[2] or tonumber(lease[1]) < count then
+    return reject(6)
+end
+
+local bitmap = ARGV[3] == 'bitmap'
+local buyerTtl = tonumber(ARGV[4])
+local expireAt
+if buyerTtl > 0 then
+    if window[2] then
+        expireAt = tonumber(window[2]) + buyerTtl
+    end
+end
+
+-- 记录用户，返回是否为首次下单；bitmap模式下同时检查切换前的集合
+local function record(userId)
+    if not bitmap then
+        if redis.call('sadd', KEYS[1], userId) == 0 then
+            return false
+        end
+        if expireAt and redis.call('pttl', KEYS[1]) == -1 then
+            redis.call('pexpireat', KEYS[1], expireAt)
+        end
+        return true
+    end
+    if redis.call('sismember', KEYS[1], userId) == 1 then
+        return false
+    end
+    local uid = tonumber(userId)
+    local buyerKey = 'seckill:buyers:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+    if redis.call('setbit', buyerKey, uid % 1048576, 1) == 1 then
+        return false
+    end
+    if expireAt and redis.call('pttl', buyerKey) == -1 then
+        redis.call('pexpireat', buyerKey, expireAt)
+    end
+    return true
+end
+
+local results = {}
+local admitted = 0
+for i = 7, #ARGV do
+    if record(ARGV[i]) then
+        local seq = redis.call('incr', counterKey)
+        redis.call('xadd', 'stream.orders', '*', 'userId', ARGV[i], 'voucherId', voucherId, 'ts', timestamp, 'seq', seq)
+        admitted = admitted + 1
+        results[#results + 1] = 0
+        results[#results + 1] = seq
+    else
+        results[#results + 1] = 2
+        results[#results + 1] = 0
+    end
+end
+-- 已售出的库存不再由节点持有
+if admitted > 0 then
+    redis.call('hincrby', KEYS[2], ARGV[2], -admitted)
+end
+return results
@@ -0,0 +1,82 @@
+---
+--- 一次下单多张秒杀券，全部有购买资格才扣减，否则都不扣减
+--- ARGV[1] 用户id，ARGV[2] 已下单用户的存储 set/bitmap，ARGV[3] 已下单记录在秒杀结束后保留的毫秒数
+--- ARGV[4] 订单序列号key，ARGV[5] 订单id的时间戳部分，之后每个参数为一个券id
+--- 成功返回 {0, 最后一个序列号}，按券的顺序连续分配序列号，订单id由调用方拼接
+--- 所有订单作为一条消息写入stream：userId, ts, orders = 券id:序列号,券id:序列号...
+--- 失败返回 {错误码, 券id}，错误码同 seckill.lua：1 库存不足，2 重复下单，4 尚未开始，5 已经结束，7 库存未加载
+---
+local userId = ARGV[1]
+local bitmap = ARGV[2] == 'bitmap'
+local buyerTtl = tonumber(ARGV[3] or '0')
+local uid = tonumber(userId)
+local counterKey = ARGV[4]
+local timestamp = ARGV[5]
+
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 第一遍只检查
+local items = {}
+for i = 6, #ARGV do
+    local voucherId = ARGV[i]
+    local item = {
+        voucherId = voucherId,
+        stockKey = 'seckill:stock:' .. voucherId,
+        orderKey = 'seckill:order:' .. voucherId
+    }
+    if bitmap then
+        item.buyerKey = 'seckill:buyers:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+        item.offset = uid % 1048576
+    end
+
+    local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+    if window[1] and window[2] then
+        if now < tonumber(window[1]) then
+            return {4, tonumber(voucherId)}
+        end
+        if now > tonumber(window[2]) then
+            return {5, tonumber(voucherId)}
+        end
+        item.windowEnd = tonumber(window[2])
+    end
+
+    local stock = redis.call('get', item.stockKey)
+    if not stock then
+        return {7, tonumber(voucherId)}
+    end
+    stock = tonumber(stock)
+    if not stock or stock <= 0 then
+        return {1, tonumber(voucherId)}
+    end
+
+    if redis.call('sismember', item.orderKey, userId) == 1 then
+        return {2, tonumber(voucherId)}
+    end
+    if item.buyerKey and redis.call('getbit', item.buyerKey, item.offset) == 1 then
+        return {2, tonumber(voucherId)}
+    end
+    items[#items + 1] = item
+end
+
+-- 第二遍扣减库存、记录用户，分配序列号
+local last = redis.call('incrby', counterKey, #items)
+local orders = {}
+for k, item in ipairs(items) do
+    redis.call('decr', item.stockKey)
+    local recordKey = item.orderKey
+    if item.buyerKey then
+        recordKey = item.buyerKey
+        redis.call('setbit', item.buyerKey, item.offset, 1)
+    else
+        redis.call('sadd', item.orderKey, userId)
+    end
+    if buyerTtl > 0 and item.windowEnd and redis.call('pttl', recordKey) == -1 then
+        redis.call('pexpireat', recordKey, item.windowEnd + buyerTtl)
+    end
+    orders[#orders + 1] = item.voucherId .. ':' .. (last - #items + k)
+end
+
+-- 所有订单作为一条消息写入stream，由订单处理线程在一个事务中写库
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'ts', timestamp, 'orders', table.concat(orders, ','))
+return {0, last}
@@ -0,0 +1,57 @@
+---
+--- 分片库存的秒杀资格判断，在用户所在分片的slot上执行
+--- KEYS[1] 本分片库存 seckill:stock:{券id:分片}
+--- KEYS[2] 本分片已下单集合 seckill:order:{券id:分片}
+--- KEYS[3] 本分片的时间窗口 seckill:window:{券id:分片}
+--- KEYS[4] bitmap模式下本分片的已下单位图 seckill:buyers:{券id:分片}:块号，set模式不传
+--- ARGV[1] 用户id，ARGV[2] 位图偏移，ARGV[3] 已下单记录在秒杀结束后保留的毫秒数
+---
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local windowKey = KEYS[3]
+local buyerKey = KEYS[4]
+local userId = ARGV[1]
+local offset = ARGV[2]
+local buyerTtl = tonumber(ARGV[3] or '0')
+
+-- 校验秒杀时间窗口，使用redis的时间，没有窗口信息时不限制
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if window[1] and window[2] then
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if now < tonumber(window[1]) then
+        return 4  -- 尚未开始，返回 4
+    end
+    if now > tonumber(window[2]) then
+        return 5  -- 已经结束，返回 5
+    end
+end
+
+-- 判断是否已下单，bitmap模式下同时检查切换前的集合
+if redis.call('sismember', orderKey, userId) == 1 then
+    return 2  -- 已下单，返回 2
+end
+if buyerKey and redis.call('getbit', buyerKey, offset) == 1 then
+    return 2
+end
+
+-- 先记录用户，占住一人一单的资格
+local recordKey = orderKey
+if buyerKey then
+    recordKey = buyerKey
+    redis.call('setbit', buyerKey, offset, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+-- 已下单记录在秒杀结束后过期
+if buyerTtl > 0 and window[2] and redis.call('pttl', recordKey) == -1 then
+    redis.call('pexpireat', recordKey, tonumber(window[2]) + buyerTtl)
+end
+
+local stock = tonumber(redis.call('get', stockKey))
+if not stock or stock <= 0 then
+    return 3  -- 本分片库存不足，由调用方向其他分片借用
+end
+
+redis.call('decr', stockKey)
+return 0  -- 成功
@@ -0,0 +1,11 @@
+---
+--- 从其他分片借用一个库存
+--- KEYS[1] 分片库存 seckill:stock:{券id:分片}
+---
+local stock = tonumber(redis.call('get', KEYS[1]))
+if not stock or stock <= 0 then
+    return 1  -- 该分片库存不足
+end
+
+redis.call('decr', KEYS[1])
+return 0
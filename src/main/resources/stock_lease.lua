@@ -0,0 +1,20 @@
+---
+--- 节点从秒杀库存中租用一段库存
+--- KEYS[1] 库存 seckill:stock:券id
+--- KEYS[2] 租约 seckill:lease:券id，字段 节点 = 持有的库存，节点:expire = 到期时间(毫秒)
+--- ARGV[1] 节点，ARGV[2] 租用数量，ARGV[3] 到期时间
+--- 返回 {本次租到的数量, 租用前持有的数量}，持有数量不大于0说明租约已被回收
+---
+local held = tonumber(redis.call('hget', KEYS[2], ARGV[1]) or '0')
+if held < 0 then
+    redis.call('hset', KEYS[2], ARGV[1], 0)
+end
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+local take = math.min(stock, tonumber(ARGV[2]))
+if take > 0 then
+    redis.call('decrby', KEYS[1], take)
+    redis.call('hincrby', KEYS[2], ARGV[1], take)
+end
+-- 每次租用都续期，租用数量为0时只续期
+redis.call('hset', KEYS[2], ARGV[1] .. ':expire', ARGV[3])
+return {take, held}
@@ -0,0 +1,21 @@
+---
+--- 回收到期未续约的租用库存(节点宕机时)
+--- KEYS[1] 库存 seckill:stock:券id
+--- KEYS[2] 租约 seckill:lease:券id
+--- ARGV[1] 到期时间早于该值的租约被回收
+---
+local fields = redis.call('hgetall', KEYS[2])
+local reclaimed = 0
+for i = 1, #fields, 2 do
+    local field = fields[i]
+    if string.sub(field, -7) == ':expire' and tonumber(fields[i + 1]) < tonumber(ARGV[1]) then
+        local node = string.sub(field, 1, -8)
+        local held = tonumber(redis.call('hget', KEYS[2], node) or '0')
+        if held > 0 then
+            redis.call('incrby', KEYS[1], held)
+            reclaimed = reclaimed + held
+        end
+        redis.call('hdel', KEYS[2], node, field)
+    end
+end
+return reclaimed
@@ -0,0 +1,16 @@
+---
+--- 节点归还未使用的租用库存
+--- KEYS[1] 库存 seckill:stock:券id
+--- KEYS[2] 租约 seckill:lease:券id
+--- ARGV[1] 节点，ARGV[2] 归还数量
+---
+local held = tonumber(redis.call('hget', KEYS[2], ARGV[1]) or '0')
+local amount = math.min(held, tonumber(ARGV[2]))
+if amount > 0 then
+    redis.call('incrby', KEYS[1], amount)
+    redis.call('hincrby', KEYS[2], ARGV[1], -amount)
+end
+if held - amount <= 0 then
+    redis.call('hdel', KEYS[2], ARGV[1], ARGV[1] .. ':expire')
+end
+return amount
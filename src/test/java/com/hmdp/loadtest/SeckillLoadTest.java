@@ -0,0 +1,265 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.map.MapUtil;
+import com.hmdp.dto.LoginFormDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_CODE_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测：嵌入式redis + H2，真实登录后并发请求 /voucher-order/seckill/{id}，
+ * 等待订单落库后检查超卖、少卖，输出吞吐、延迟分位数和落库延迟
+ * 运行：mvn test -Ploadtest -Dloadtest.users=5000 -Dloadtest.stock=1000
+ * 比较已下单记录的内存：-Dloadtest.buyer-store=set 与 -Dloadtest.buyer-store=bitmap
+ */
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 2000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 500);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 1);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 200);
+    private static final int STOCK_SHARDS = Integer.getInteger("loadtest.stock-shards", 1);
+    private static final long PERSIST_TIMEOUT_MILLIS = Long.getLong("loadtest.persist-timeout-millis", 60000L);
+    private static final String BUYER_STORE = System.getProperty("loadtest.buyer-store", SeckillBuyers.SET);
+
+    private static final int REDIS_PORT = freePort();
+    private static final RedisServer REDIS = startRedis(REDIS_PORT);
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.port", () -> REDIS_PORT);
+        registry.add("hmdp.seckill.buyers.store", () -> BUYER_STORE);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        REDIS.stop();
+    }
+
+    @Resource
+    private TestRestTemplate restTemplate;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockShards stockShards;
+    @Resource
+    private SeckillBuyers seckillBuyers;
+
+    private final ExecutorService es = Executors.newFixedThreadPool(THREADS);
+
+    @Test
+    void flashSale() throws Exception {
+        Long voucherId = createVoucher();
+        List<String> tokens = login();
+
+        //所有用户准备好后同时开始
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>(USERS * REQUESTS_PER_USER));
+        Map<Long, Long> acceptedAt = new ConcurrentHashMap<>();
+        Map<String, Integer> failures = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(USERS * REQUESTS_PER_USER);
+        for (String token : tokens) {
+            for (int i = 0; i < REQUESTS_PER_USER; i++) {
+                es.execute(() -> {
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        Result result = post("/voucher-order/seckill/" + voucherId, null, token);
+                        latencies.add(System.nanoTime() - begin);
+                        if (Boolean.TRUE.equals(result.getSuccess())) {
+                            acceptedAt.put(((Number) result.getData()).longValue(), System.currentTimeMillis());
+                        } else {
+                            failures.merge(String.valueOf(result.getErrorMsg()), 1, Integer::sum);
+                        }
+                    } catch (Exception e) {
+                        failures.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        long wallMillis = System.currentTimeMillis() - begin;
+
+        //等待订单落库，记录每个订单第一次被查到的时间
+        Map<Long, Long> persistedAt = new HashMap<>();
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MILLIS;
+        while (persistedAt.size() < acceptedAt.size() && System.currentTimeMillis() < deadline) {
+            long now = System.currentTimeMillis();
+            for (VoucherOrder order : voucherOrderService.query().select("id").eq("voucher_id", voucherId).list()) {
+                persistedAt.putIfAbsent(order.getId(), now);
+            }
+            Thread.sleep(50);
+        }
+        long drainMillis = System.currentTimeMillis() - begin - wallMillis;
+
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        Set<Long> buyers = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        long redisStock = stockShards.remaining(voucherId);
+        List<Long> lags = acceptedAt.entrySet().stream()
+                .filter(e -> persistedAt.containsKey(e.getKey()))
+                .map(e -> Math.max(0, persistedAt.get(e.getKey()) - e.getValue()))
+                .sorted()
+                .collect(Collectors.toList());
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户：%d，每人请求：%d，库存：%d，分片：%d，并发线程：%d%n",
+                USERS, REQUESTS_PER_USER, STOCK, STOCK_SHARDS, THREADS);
+        System.out.printf("请求：%d，耗时：%dms，吞吐：%.1f req/s%n",
+                sorted.size(), wallMillis, sorted.size() * 1000.0 / Math.max(1, wallMillis));
+        System.out.printf("延迟 p50：%.2fms，p99：%.2fms，p999：%.2fms，max：%.2fms%n",
+                percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+                percentile(sorted, 0.999) / 1e6, percentile(sorted, 1.0) / 1e6);
+        System.out.printf("抢到：%d，失败：%s%n", acceptedAt.size(), failures);
+        System.out.printf("落库：%d，落库耗时：%dms，落库延迟 p50：%dms，p99：%dms，max：%dms%n",
+                orders.size(), drainMillis, percentile(lags, 0.5), percentile(lags, 0.99), percentile(lags, 1.0));
+        System.out.printf("redis剩余库存：%d，数据库剩余库存：%d%n", redisStock, seckillVoucher.getStock());
+        System.out.printf("已下单记录：%s%n", seckillBuyers.memoryUsage(voucherId));
+
+        //超卖
+        assertTrue(acceptedAt.size() <= STOCK, "抢到的订单超过库存");
+        assertTrue(orders.size() <= STOCK, "落库的订单超过库存");
+        //少卖：用户数足够时库存应当卖完
+        if (USERS >= STOCK) {
+            assertEquals(STOCK, acceptedAt.size(), "库存未卖完");
+        }
+        //一人一单，抢到的订单全部落库，三处库存一致
+        assertEquals(orders.size(), buyers.size(), "存在重复下单");
+        assertEquals(acceptedAt.keySet(), orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()),
+                "抢到的订单与落库的订单不一致");
+        assertEquals(STOCK - acceptedAt.size(), redisStock, "redis库存不一致");
+        assertEquals(STOCK - orders.size(), (long) seckillVoucher.getStock(), "数据库库存不一致");
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setStockShards(STOCK_SHARDS);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /*
+     * 走真实的验证码登录流程，验证码从redis中读取
+     * */
+    private List<String> login() throws InterruptedException {
+        List<String> tokens = Collections.synchronizedList(new ArrayList<>(USERS));
+        CountDownLatch latch = new CountDownLatch(USERS);
+        Set<String> phones = new HashSet<>();
+        for (int i = 0; i < USERS; i++) {
+            phones.add(String.format("138%08d", i));
+        }
+        for (String phone : phones) {
+            es.execute(() -> {
+                try {
+                    post("/user/code?phone=" + phone, null, null);
+                    LoginFormDTO form = new LoginFormDTO();
+                    form.setPhone(phone);
+                    form.setCode(stringRedisTemplate.opsForValue().get(LOGIN_CODE_KEY + phone));
+                    tokens.add((String) post("/user/login", form, null).getData());
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.MINUTES), "登录超时");
+        assertEquals(USERS, tokens.size(), "登录失败");
+        return tokens;
+    }
+
+    private Result post(String path, Object body, String token) {
+        HttpHeaders headers = new HttpHeaders();
+        if (token != null) {
+            headers.set("authorization", token);
+        }
+        return restTemplate.postForObject(path, new HttpEntity<>(body, headers), Result.class, MapUtil.empty());
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.min(sorted.size() - 1, Math.max(0, index)));
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RedisServer startRedis(int port) {
+        try {
+            RedisServer server = new RedisServer(port);
+            server.start();
+            return server;
+        } catch (IOException e) {
+            throw new IllegalStateException("嵌入式redis启动失败", e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存编码对比：原有的RedisData双重json解析 vs JsonCacheCodec vs BinaryCacheCodec
+ * 默认只执行编解码校验，耗时对比通过 mvn test -Pbenchmark 执行
+ */
+class CacheCodecBenchmarkTests {
+
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 100000;
+
+    /**
+     * 防止结果被JIT优化掉
+     */
+    private static volatile Object blackhole;
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec();
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = newShop();
+        long expireAt = System.currentTimeMillis() + 60_000;
+
+        CacheValue binary = binaryCodec.decode(binaryCodec.encode(new CacheValue(shop, expireAt, 12)), Shop.class);
+        assertEquals(shop, binary.getData());
+        assertEquals(expireAt, binary.getExpireAt());
+        assertEquals(12, binary.getRebuildCost());
+
+        CacheValue json = jsonCodec.decode(jsonCodec.encode(new CacheValue(shop, expireAt, 12)), Shop.class);
+        assertEquals(shop.getName(), ((Shop) json.getData()).getName());
+        assertEquals(12, json.getRebuildCost());
+
+        //旧格式能被json编码识别，二进制编码不识别
+        byte[] legacy = legacyEncode(shop).getBytes(StandardCharsets.UTF_8);
+        assertTrue(jsonCodec.canDecode(legacy));
+        assertTrue(!binaryCodec.canDecode(legacy));
+        assertEquals(shop.getName(), ((Shop) jsonCodec.decode(legacy, Shop.class).getData()).getName());
+    }
+
+    @Test
+    @Tag("benchmark")
+    void benchmark() {
+        Shop shop = newShop();
+        long expireAt = System.currentTimeMillis() + 60_000;
+        CacheValue value = new CacheValue(shop, expireAt, 12);
+
+        String legacy = legacyEncode(shop);
+        byte[] json = jsonCodec.encode(value);
+        byte[] binary = binaryCodec.encode(value);
+
+        System.out.println("size legacy: " + legacy.getBytes(StandardCharsets.UTF_8).length
+                + ", json: " + json.length + ", binary: " + binary.length);
+        report("legacy encode", () -> legacyEncode(shop));
+        report("legacy decode", () -> legacyDecode(legacy));
+        report("json encode", () -> jsonCodec.encode(value));
+        report("json decode", () -> jsonCodec.decode(json, Shop.class));
+        report("binary encode", () -> binaryCodec.encode(value));
+        report("binary decode", () -> binaryCodec.decode(binary, Shop.class));
+    }
+
+    /*
+     * 原有的写入方式
+     * */
+    private static String legacyEncode(Shop shop) {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(60));
+        return JSONUtil.toJsonStr(redisData);
+    }
+
+    /*
+     * 原有的读取方式
+     * */
+    private static Shop legacyDecode(String json) {
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        return JSONUtil.toBean(JSONUtil.toJsonStr(redisData.getData()), Shop.class);
+    }
+
+    private static void report(String name, Supplier<Object> task) {
+        Object sink = null;
+        for (int i = 0; i < WARMUP; i++) {
+            sink = task.get();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = task.get();
+        }
+        long cost = System.nanoTime() - begin;
+        blackhole = sink;
+        System.out.println(name + ": " + cost / ROUNDS + " ns/op");
+    }
+
+    private static Shop newShop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 预热时恢复缺失的秒杀库存
+ */
+class CacheWarmUpTests {
+
+    @Test
+    void restoreWithBuyerRecords() {
+        //初始100，已落库30，stream中还有10条未落库(数据库库存未扣减)，节点租用5
+        assertEquals(55, CacheWarmUp.remainingStock(70, 30, 40, 5));
+    }
+
+    @Test
+    void restoreAfterRedisLost() {
+        //redis整体丢失：已下单记录为0，不能补回已售出的30
+        assertEquals(70, CacheWarmUp.remainingStock(70, 30, 0, 0));
+        //已下单记录只剩一部分时同样按数据库订单数计算
+        assertEquals(70, CacheWarmUp.remainingStock(70, 30, 12, 0));
+    }
+
+    @Test
+    void neverNegative() {
+        assertEquals(0, CacheWarmUp.remainingStock(0, 50, 60, 3));
+    }
+}
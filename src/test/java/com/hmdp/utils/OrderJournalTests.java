@@ -0,0 +1,253 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.redisson.api.RBatch;
+import org.redisson.api.RStreamAsync;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.api.stream.StreamAddParams;
+import org.redisson.client.codec.Codec;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地订单日志：恢复、分段、损坏的尾部记录、转发位置和停机时的刷盘
+ * redis用mock代替，转发到stream的订单记录在forwarded中
+ */
+class OrderJournalTests {
+
+    private static final int SEGMENT_BYTES = 160;
+
+    @TempDir
+    Path dir;
+
+    private final List<String> forwarded = Collections.synchronizedList(new ArrayList<>());
+    private final List<OrderJournal> opened = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        opened.forEach(this::destroy);
+    }
+
+    @Test
+    void recoverAfterRestart() throws Exception {
+        OrderJournal journal = open(offline(), 1);
+        for (int i = 1; i <= 5; i++) {
+            journal.append(order(i));
+        }
+        destroy(journal);
+
+        open(online(), 1);
+        await(() -> forwarded.size() == 5);
+        assertEquals(ids(1, 5), forwarded);
+    }
+
+    @Test
+    void rollSegments() throws Exception {
+        OrderJournal journal = open(offline(), 1);
+        for (int i = 1; i <= 10; i++) {
+            journal.append(order(i));
+        }
+        destroy(journal);
+        assertTrue(segments().size() > 2, "记录应分布在多个段中");
+
+        OrderJournal reopened = open(online(), 1);
+        await(() -> forwarded.size() == 10);
+        assertEquals(ids(1, 10), forwarded);
+        //读完的段删除，只保留正在写入的段
+        await(() -> segments().size() == 1);
+
+        reopened.append(order(11));
+        await(() -> forwarded.size() == 11);
+    }
+
+    @Test
+    void dropTornTail() throws Exception {
+        OrderJournal journal = open(offline(), 1);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(order(i));
+        }
+        destroy(journal);
+
+        //模拟宕机时最后一条记录只写了一部分：改坏最后一条的内容，crc校验失败
+        Path segment = segments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int pos = 0;
+            int last = 0;
+            for (int i = 0; i < 3; i++) {
+                file.seek(pos);
+                last = pos;
+                pos += 8 + file.readInt();
+            }
+            file.seek(last + 8);
+            byte b = file.readByte();
+            file.seek(last + 8);
+            file.writeByte(b ^ 0xff);
+        }
+
+        OrderJournal reopened = open(online(), 1);
+        await(() -> forwarded.size() == 2);
+        //新记录写在最后一条完整记录之后，覆盖损坏的部分
+        reopened.append(order(4));
+        await(() -> forwarded.size() == 3);
+        assertEquals(ids(1, 2, 4), forwarded);
+    }
+
+    @Test
+    void resumeFromCheckpoint() throws Exception {
+        OrderJournal journal = open(online(), 1);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(order(i));
+        }
+        await(() -> forwarded.size() == 3);
+        await(() -> checkpoint() == written(journal));
+        destroy(journal);
+
+        //已转发的订单不再转发
+        OrderJournal reopened = open(online(), 1);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(3, forwarded.size());
+        reopened.append(order(4));
+        await(() -> forwarded.size() == 4);
+        assertEquals(ids(1, 4), forwarded);
+    }
+
+    @Test
+    void appendWaitingForFlushSucceedsOnShutdown() throws Exception {
+        //刷盘间隔很长，append一直等待，直到停机时刷盘
+        OrderJournal journal = open(offline(), 60000);
+        CompletableFuture<Void> append = CompletableFuture.runAsync(() -> {
+            try {
+                journal.append(order(1));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        await(() -> written(journal) > 0);
+        destroy(journal);
+        append.get(5, TimeUnit.SECONDS);
+
+        open(online(), 1);
+        await(() -> forwarded.size() == 1);
+        assertEquals(ids(1), forwarded);
+    }
+
+    private OrderJournal open(RedissonClient redissonClient, long flushIntervalMillis) {
+        OrderJournal journal = new OrderJournal(redissonClient);
+        ReflectionTestUtils.setField(journal, "mode", OrderJournal.PRIMARY);
+        ReflectionTestUtils.setField(journal, "dir", dir.toString());
+        ReflectionTestUtils.setField(journal, "segmentBytes", SEGMENT_BYTES);
+        ReflectionTestUtils.setField(journal, "flushIntervalMillis", flushIntervalMillis);
+        ReflectionTestUtils.setField(journal, "replayBatchSize", 4);
+        ReflectionTestUtils.invokeMethod(journal, "init");
+        opened.add(journal);
+        return journal;
+    }
+
+    private void destroy(OrderJournal journal) {
+        if (ReflectionTestUtils.getField(journal, "running") == Boolean.TRUE) {
+            ReflectionTestUtils.invokeMethod(journal, "destroy");
+        }
+    }
+
+    /*
+     * redis不可用，订单留在日志中
+     * */
+    private RedissonClient offline() {
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        when(redissonClient.createBatch()).thenThrow(new IllegalStateException("redis不可用"));
+        return redissonClient;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedissonClient online() {
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        RBatch batch = mock(RBatch.class);
+        RStreamAsync<String, String> stream = mock(RStreamAsync.class);
+        when(redissonClient.createBatch()).thenReturn(batch);
+        doReturn(stream).when(batch).getStream(anyString(), any(Codec.class));
+        when(stream.addAsync(any(StreamAddArgs.class))).thenAnswer(invocation -> {
+            StreamAddParams<String, String> params = invocation.getArgument(0);
+            forwarded.add(params.getEntries().get("id"));
+            return null;
+        });
+        return redissonClient;
+    }
+
+    private static Map<String, String> order(long id) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", String.valueOf(1000 + id));
+        fields.put("voucherId", "7");
+        fields.put("id", String.valueOf(id));
+        return fields;
+    }
+
+    private static List<String> ids(int from, int to) {
+        List<String> ids = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    private static List<String> ids(int... ids) {
+        List<String> result = new ArrayList<>();
+        for (int id : ids) {
+            result.add(String.valueOf(id));
+        }
+        return result;
+    }
+
+    private static long written(OrderJournal journal) {
+        return (long) ReflectionTestUtils.getField(journal, "written");
+    }
+
+    private long checkpoint() {
+        try {
+            Path checkpoint = dir.resolve("checkpoint");
+            return Files.exists(checkpoint) ? ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong() : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private List<Path> segments() {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
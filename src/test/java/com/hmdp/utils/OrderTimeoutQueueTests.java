@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 未支付订单超时：时间轮的到期计算，ZADD NX 登记和认领脚本
+ */
+class OrderTimeoutQueueTests {
+
+    private static final long TICK = 100;
+    private static final long START = 1_000_000;
+
+    private static EmbeddedRedis redis;
+    private StringRedisTemplate template;
+
+    @BeforeAll
+    static void startRedis() {
+        redis = new EmbeddedRedis();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.stop();
+    }
+
+    @BeforeEach
+    void flush() {
+        redis.flush();
+        template = redis.template();
+    }
+
+    @Test
+    void expireInFirstRound() {
+        OrderTimeoutQueue.Wheel wheel = new OrderTimeoutQueue.Wheel(4, TICK, START);
+        wheel.add(new OrderTimeoutQueue.Timeout(1, START + 2 * TICK + 50));
+
+        //第2格在 START + 3 * TICK 结束时处理，不早于超时时间
+        assertEquals(Collections.emptyList(), advance(wheel, 2));
+        assertEquals(START + 3 * TICK, wheel.nextTickAt());
+        assertEquals(Collections.singletonList(1L), advance(wheel, 1));
+    }
+
+    @Test
+    void countRounds() {
+        OrderTimeoutQueue.Wheel wheel = new OrderTimeoutQueue.Wheel(4, TICK, START);
+        //第9格：与第1格、第5格同一个格子，转两圈后到期
+        wheel.add(new OrderTimeoutQueue.Timeout(1, START + 9 * TICK));
+        wheel.add(new OrderTimeoutQueue.Timeout(2, START + TICK));
+        wheel.add(new OrderTimeoutQueue.Timeout(3, START + 5 * TICK));
+
+        assertEquals(Collections.emptyList(), advance(wheel, 1));
+        assertEquals(Collections.singletonList(2L), advance(wheel, 1));
+        assertEquals(Collections.emptyList(), advance(wheel, 3));
+        assertEquals(Collections.singletonList(3L), advance(wheel, 1));
+        assertEquals(Collections.emptyList(), advance(wheel, 3));
+        assertEquals(Collections.singletonList(1L), advance(wheel, 1));
+        assertEquals(Collections.emptyList(), advance(wheel, 8));
+    }
+
+    @Test
+    void expireOverdueImmediately() {
+        OrderTimeoutQueue.Wheel wheel = new OrderTimeoutQueue.Wheel(4, TICK, START);
+        advance(wheel, 6);
+        //已经过期的订单放到当前格，本格处理
+        wheel.add(new OrderTimeoutQueue.Timeout(1, START - 1000));
+        wheel.add(new OrderTimeoutQueue.Timeout(2, START + 2 * TICK));
+        List<Long> due = advance(wheel, 1);
+        Collections.sort(due);
+        assertEquals(Arrays.asList(1L, 2L), due);
+    }
+
+    @Test
+    void scheduleKeepsFirstDeadline() {
+        OrderTimeoutQueue queue = queue(15);
+        long orderId = RedisIdWorker.compose(new RedisIdWorker(template).timestamp(LocalDateTime.now()), 1);
+        queue.schedule(Collections.singletonList(orderId));
+        Double first = template.opsForZSet().score(ORDER_TIMEOUT_KEY, String.valueOf(orderId));
+        assertEquals(RedisIdWorker.createdAtMillis(orderId) + TimeUnit.MINUTES.toMillis(15), first.longValue());
+
+        //重新投递时再次登记，已有的分数(包括认领后后移的分数)不被覆盖
+        template.opsForZSet().add(ORDER_TIMEOUT_KEY, String.valueOf(orderId), first + 120_000);
+        queue(30).schedule(Collections.singletonList(orderId));
+        assertEquals(first + 120_000, template.opsForZSet().score(ORDER_TIMEOUT_KEY, String.valueOf(orderId)));
+        assertEquals(1, template.opsForZSet().zCard(ORDER_TIMEOUT_KEY));
+    }
+
+    @Test
+    void reclaimAfterLease() {
+        template.opsForZSet().add(ORDER_TIMEOUT_KEY, "1", 1000);
+        template.opsForZSet().add(ORDER_TIMEOUT_KEY, "2", 2000);
+        template.opsForZSet().add(ORDER_TIMEOUT_KEY, "3", 9000);
+
+        assertEquals(Arrays.asList("1", "1000", "2", "2000"), claim(2000, 10, 5000));
+        //认领有效期内不会被重复认领
+        assertTrue(claim(2000, 10, 5000).isEmpty());
+        //超过有效期后重新认领，分数为认领时后移的时间
+        assertEquals(Arrays.asList("1", "6000"), claim(6000, 10, 5000));
+        assertEquals(11000, template.opsForZSet().score(ORDER_TIMEOUT_KEY, "1").longValue());
+        //每次最多认领limit个
+        assertEquals(Arrays.asList("2", "7000"), claim(20000, 1, 5000));
+    }
+
+    private OrderTimeoutQueue queue(long timeoutMinutes) {
+        OrderTimeoutQueue queue = new OrderTimeoutQueue(template, null, null, null);
+        ReflectionTestUtils.setField(queue, "enabled", true);
+        ReflectionTestUtils.setField(queue, "timeoutMinutes", timeoutMinutes);
+        return queue;
+    }
+
+    private List<String> claim(long until, int limit, long lease) {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        script.setResultType(List.class);
+        List<?> items = template.execute(script, Collections.singletonList(ORDER_TIMEOUT_KEY),
+                String.valueOf(until), String.valueOf(limit), String.valueOf(lease));
+        List<String> result = new ArrayList<>();
+        for (Object item : items) {
+            String s = item.toString();
+            result.add(s.endsWith(".0") ? s.substring(0, s.length() - 2) : s);
+        }
+        return result;
+    }
+
+    private static List<Long> advance(OrderTimeoutQueue.Wheel wheel, int ticks) {
+        List<Long> due = new ArrayList<>();
+        for (int i = 0; i < ticks; i++) {
+            wheel.advance(due);
+        }
+        return due;
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存重建调度：去重、队列满时的丢弃顺序、超时释放
+ * 只用一个工作线程，先提交一个阻塞的任务占住线程，再观察排队中的任务
+ */
+class RebuildSchedulerTests {
+
+    private RebuildScheduler scheduler;
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    @AfterEach
+    void destroy() {
+        unblock.countDown();
+        ReflectionTestUtils.invokeMethod(scheduler, "destroy");
+    }
+
+    @Test
+    void coalesceDuplicateSubmits() throws Exception {
+        start(10, 3000);
+        block();
+        AtomicInteger rebuilt = new AtomicInteger();
+        AtomicInteger released = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(scheduler.submit("cache:shop:", "cache:shop:1", false, () -> {
+            rebuilt.incrementAndGet();
+            done.countDown();
+        }, released::incrementAndGet));
+        assertTrue(scheduler.isPending("cache:shop:1"));
+        //同一个key排队期间再次提交被去重，由调用方释放锁
+        assertFalse(scheduler.submit("cache:shop:", "cache:shop:1", false, rebuilt::incrementAndGet, released::incrementAndGet));
+        //批量任务中任一key在排队时整批不提交，其他key也不占位
+        assertFalse(scheduler.submit("cache:shop:", Arrays.asList("cache:shop:2", "cache:shop:1"), false,
+                rebuilt::incrementAndGet, released::incrementAndGet));
+        assertFalse(scheduler.isPending("cache:shop:2"));
+
+        unblock.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        await(() -> released.get() == 1);
+        assertEquals(1, rebuilt.get());
+        assertFalse(scheduler.isPending("cache:shop:1"));
+        Map<?, ?> stats = (Map<?, ?>) scheduler.stats().get("cache:shop:");
+        assertEquals(2L, stats.get("deduplicated"));
+    }
+
+    @Test
+    void dropOldestNormalKeyFirst() throws Exception {
+        start(3, 3000);
+        block();
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        List<String> released = Collections.synchronizedList(new ArrayList<>());
+
+        submit("n1", false, executed, released);
+        submit("h1", true, executed, released);
+        submit("n2", false, executed, released);
+        //超出上限，先丢弃最旧的普通key
+        submit("h2", true, executed, released);
+        assertEquals(Collections.singletonList("n1"), released);
+        assertFalse(scheduler.isPending("n1"));
+        submit("h3", true, executed, released);
+        assertEquals(Arrays.asList("n1", "n2"), released);
+        //没有普通key时丢弃最旧的热点key
+        submit("h4", true, executed, released);
+        assertEquals(Arrays.asList("n1", "n2", "h1"), released);
+        assertEquals(3, scheduler.queueSize());
+
+        unblock.countDown();
+        await(() -> executed.size() == 3);
+        //热点队列按提交顺序执行，被丢弃的任务不执行
+        assertEquals(Arrays.asList("h2", "h3", "h4"), executed);
+    }
+
+    @Test
+    void timeoutReleasesWithoutInterruptingNextTask() throws Exception {
+        start(10, 100);
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicBoolean stillRunningWhenReleased = new AtomicBoolean();
+        AtomicBoolean slowInterrupted = new AtomicBoolean();
+        AtomicBoolean slowRunning = new AtomicBoolean();
+        //卡住的重建：不响应中断，超过超时时间才结束
+        scheduler.submit("cache:shop:", "cache:shop:1", false, () -> {
+            slowRunning.set(true);
+            long end = System.currentTimeMillis() + 300;
+            while (System.currentTimeMillis() < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    slowInterrupted.set(true);
+                }
+            }
+            slowRunning.set(false);
+        }, () -> {
+            stillRunningWhenReleased.set(slowRunning.get());
+            released.countDown();
+        });
+
+        AtomicBoolean nextInterrupted = new AtomicBoolean();
+        CountDownLatch nextDone = new CountDownLatch(1);
+        scheduler.submit("cache:shop:", "cache:shop:2", false, () -> {
+            try {
+                nextInterrupted.set(Thread.currentThread().isInterrupted());
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                nextInterrupted.set(true);
+            } finally {
+                nextDone.countDown();
+            }
+        }, () -> { });
+
+        //超时后在任务结束前释放锁，并中断执行该任务的线程
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertTrue(stillRunningWhenReleased.get());
+        assertTrue(nextDone.await(5, TimeUnit.SECONDS));
+        assertTrue(slowInterrupted.get());
+        //中断不会落到同一线程的下一个任务上
+        assertFalse(nextInterrupted.get());
+        Map<?, ?> stats = (Map<?, ?>) scheduler.stats().get("cache:shop:");
+        assertEquals(1L, stats.get("timeouts"));
+        //超时的key可以重新排队
+        assertTrue(scheduler.submit("cache:shop:", "cache:shop:1", false, () -> { }, () -> { }));
+    }
+
+    private void start(int queueCapacity, long timeoutMillis) {
+        scheduler = new RebuildScheduler();
+        ReflectionTestUtils.setField(scheduler, "threads", 1);
+        ReflectionTestUtils.setField(scheduler, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(scheduler, "timeoutMillis", timeoutMillis);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+    }
+
+    /*
+     * 占住唯一的工作线程，直到unblock
+     * */
+    private void block() throws InterruptedException {
+        scheduler.submit("block", "block", true, () -> {
+            blocked.countDown();
+            try {
+                unblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, () -> { });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    }
+
+    private void submit(String key, boolean hot, List<String> executed, List<String> released) {
+        assertTrue(scheduler.submit("test", key, hot, () -> executed.add(key), () -> {
+            if (!executed.contains(key)) {
+                released.add(key);
+            }
+        }));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IUserService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+/**
+ * 已下单用户的位图存储：块号和偏移的计算与lua脚本一致，跨块的计数和遍历
+ * 边界用户id：0、2^20-1(第0块最后一位)、2^20(第1块第一位)和超过int范围的id
+ */
+class SeckillBuyersTests {
+
+    private static final long VOUCHER_ID = 7;
+    private static final long CHUNK = 1L << 20;
+    private static final List<Long> USER_IDS = Arrays.asList(0L, CHUNK - 1, CHUNK, 3 * CHUNK + 12345, (1L << 31) + 5);
+
+    private static EmbeddedRedis redis;
+    private StringRedisTemplate template;
+    private SeckillBuyers buyers;
+
+    @BeforeAll
+    static void startRedis() {
+        redis = new EmbeddedRedis();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redis.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        redis.flush();
+        template = redis.template();
+        SeckillStockShards stockShards = new SeckillStockShards(template);
+        ReflectionTestUtils.setField(stockShards, "missTtlSeconds", 5L);
+        ReflectionTestUtils.invokeMethod(stockShards, "initCache");
+        buyers = spy(new SeckillBuyers(template, stockShards, mock(SeckillWindow.class), mock(IUserService.class)));
+        ReflectionTestUtils.setField(buyers, "store", SeckillBuyers.BITMAP);
+        ReflectionTestUtils.setField(buyers, "ttlAfterEndHours", 24L);
+        doReturn(USER_IDS.get(USER_IDS.size() - 1)).when(buyers).maxUserId();
+        template.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + VOUCHER_ID, "100");
+    }
+
+    @Test
+    void chunkKeyAndOffset() {
+        assertEquals("seckill:buyers:7:0", buyers.bitmapKey(VOUCHER_ID, 0, 1, 0));
+        assertEquals(0, buyers.offset(0));
+        assertEquals("seckill:buyers:7:0", buyers.bitmapKey(VOUCHER_ID, 0, 1, CHUNK - 1));
+        assertEquals(CHUNK - 1, buyers.offset(CHUNK - 1));
+        assertEquals("seckill:buyers:7:1", buyers.bitmapKey(VOUCHER_ID, 0, 1, CHUNK));
+        assertEquals(0, buyers.offset(CHUNK));
+        assertEquals("seckill:buyers:7:2048", buyers.bitmapKey(VOUCHER_ID, 0, 1, (1L << 31) + 5));
+        assertEquals(5, buyers.offset((1L << 31) + 5));
+        //分片时位图key和该分片的库存在同一个slot
+        assertEquals("seckill:buyers:{7:2}:1", buyers.bitmapKey(VOUCHER_ID, 2, 4, CHUNK));
+    }
+
+    @Test
+    void scriptWritesSameBits() {
+        for (Long userId : USER_IDS) {
+            assertEquals(0L, order(userId));
+            assertTrue(template.opsForValue().getBit(buyers.bitmapKey(VOUCHER_ID, 0, 1, userId), buyers.offset(userId)));
+        }
+        //lua脚本按同样的块号和偏移判断重复下单
+        for (Long userId : USER_IDS) {
+            assertEquals(2L, order(userId));
+        }
+        //相邻块之间没有写错位
+        assertFalse(template.opsForValue().getBit("seckill:buyers:7:0", 1));
+        assertFalse(template.opsForValue().getBit("seckill:buyers:7:1", 1));
+    }
+
+    @Test
+    void countAndDecodeAcrossChunks() throws IOException {
+        USER_IDS.forEach(this::order);
+        //切换前集合中的用户也计入
+        template.opsForSet().add(RedisConstants.SECKILL_ORDER_KEY + VOUCHER_ID, "42");
+
+        assertEquals(USER_IDS.size() + 1, buyers.count(VOUCHER_ID));
+        List<Long> decoded = new ArrayList<>();
+        List<Integer> batchSizes = new ArrayList<>();
+        buyers.forEachBuyer(VOUCHER_ID, 2, batch -> {
+            batchSizes.add(batch.size());
+            decoded.addAll(batch);
+        });
+        List<Long> expected = new ArrayList<>();
+        expected.add(42L);
+        expected.addAll(USER_IDS);
+        assertEquals(expected, decoded);
+        assertEquals(Arrays.asList(2, 2, 2), batchSizes);
+    }
+
+    @Test
+    void removeClearsScriptBit() throws IOException {
+        USER_IDS.forEach(this::order);
+        buyers.remove(VOUCHER_ID, 0, 1, CHUNK - 1);
+        buyers.remove(VOUCHER_ID, 0, 1, CHUNK);
+
+        assertEquals(USER_IDS.size() - 2, buyers.count(VOUCHER_ID));
+        List<Long> decoded = new ArrayList<>();
+        buyers.forEachBuyer(VOUCHER_ID, 100, decoded::addAll);
+        assertEquals(Arrays.asList(0L, 3 * CHUNK + 12345, (1L << 31) + 5), decoded);
+        //撤销后可以重新下单
+        assertEquals(0L, order(CHUNK));
+    }
+
+    @Test
+    void noBuyers() throws IOException {
+        doReturn(0L).when(buyers).maxUserId();
+        assertEquals(Collections.singletonList("seckill:buyers:7:0"), buyers.bitmapKeys(VOUCHER_ID));
+        assertEquals(0, buyers.count(VOUCHER_ID));
+        List<Long> decoded = new ArrayList<>();
+        buyers.forEachBuyer(VOUCHER_ID, 10, decoded::addAll);
+        assertTrue(decoded.isEmpty());
+    }
+
+    /*
+     * 用下单脚本写入已下单记录，返回脚本结果码
+     * */
+    @SuppressWarnings("rawtypes")
+    private long order(long userId) {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill.lua"));
+        script.setResultType(List.class);
+        List<?> result = template.execute(script, Collections.emptyList(), String.valueOf(VOUCHER_ID),
+                String.valueOf(userId), "test:seq", SeckillBuyers.BITMAP, buyers.ttlArg(), "0");
+        return ((Number) result.get(0)).longValue();
+    }
+}